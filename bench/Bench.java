@@ -0,0 +1,95 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// A small benchmark harness. JMH can't be used here because it refuses benchmark classes in the default package,
+// which is where all of the recognizer's classes live, so this follows the same recipe by hand: each case is
+// warmed up first, then timed over several measurement iterations, and the bytes allocated by the benchmark thread
+// are sampled (via com.sun.management.ThreadMXBean) so that allocation per operation is reported alongside time.
+public class Bench {
+
+    // One benchmarked operation. run() should return something derived from its result so it can't be optimized away.
+    public abstract static class Case {
+        final String name;
+
+        public Case(String name) {
+            this.name = name;
+        }
+
+        public abstract Object run() throws Exception;
+    }
+
+    private final ArrayList<Case> cases = new ArrayList<Case>();
+    private final String filter;
+    private final long warmupNanos, iterationNanos;
+    private final int iterations;
+    private volatile int sink;
+
+    public Bench(String[] args) {
+        String filter = "";
+        boolean quick = false;
+
+        for (String arg : args) {
+            if (arg.equals("--quick"))
+                quick = true;
+            else
+                filter = arg;
+        }
+        this.filter = filter;
+        warmupNanos = quick ? 200000000L : 2000000000L;
+        iterationNanos = quick ? 100000000L : 1000000000L;
+        iterations = quick ? 3 : 5;
+    }
+
+    // Cases are only set up when their name contains the filter given on the command line. A group of cases is
+    // wanted if the filter narrows it down to some of its members.
+    public boolean wants(String name) {
+        return name.contains(filter) || filter.startsWith(name);
+    }
+
+    public void add(Case c) {
+        if (wants(c.name))
+            cases.add(c);
+    }
+
+    public void runAll() throws Exception {
+        System.out.println(String.format("%-48s %14s %14s %14s %14s", "benchmark", "ns/op", "+- ns/op", "median ns/op",
+                "bytes/op"));
+        for (Case c : cases)
+            report(c);
+    }
+
+    private void report(Case c) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        double[] nanosPerOp = new double[iterations];
+        long ops = 0, allocated = 0;
+
+        for (long end = System.nanoTime() + warmupNanos; System.nanoTime() < end; )
+            sink += c.run().hashCode();
+        for (int i = 0; i < iterations; i++) {
+            long iterationOps = 0;
+            long startBytes = threads.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime(), now;
+            do {
+                sink += c.run().hashCode();
+                iterationOps++;
+            } while ((now = System.nanoTime()) - start < iterationNanos);
+            allocated += threads.getThreadAllocatedBytes(thread) - startBytes;
+            nanosPerOp[i] = ((double)(now - start))/iterationOps;
+            ops += iterationOps;
+        }
+
+        double mean = 0, deviation = 0;
+        for (double n : nanosPerOp)
+            mean += n / iterations;
+        for (double n : nanosPerOp)
+            deviation += (n - mean) * (n - mean) / iterations;
+        // The median of the iterations, which a single iteration disturbed by GC or the OS can't drag off like the mean
+        Arrays.sort(nanosPerOp);
+        double median = iterations % 2 == 1 ? nanosPerOp[iterations / 2]
+                : (nanosPerOp[iterations / 2 - 1] + nanosPerOp[iterations / 2]) / 2;
+        System.out.println(String.format("%-48s %14.1f %14.1f %14.1f %14d", c.name, mean, Math.sqrt(deviation), median,
+                allocated / ops));
+    }
+}
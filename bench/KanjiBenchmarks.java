@@ -0,0 +1,271 @@
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+// Benchmarks for feature extraction and matching. Run with
+//   mvn -Pbench compile exec:exec [-Dbench.args="<name filter> [--quick]"]
+// Extraction runs on the sample glyphs (see SampleGlyphs) at DrawFrame's 250x250 and at scan-like sizes, and
+// matching runs against the shipped 'data.txt' and against synthetic reference sets of 200, 10k and 1M rows. The
+// "top10.vptree" cases next to the brute-force ones show where (if anywhere) VpTree starts to pay off. The
+// ".workspace" extraction cases go through an ExtractionWorkspace, and should allocate 0 bytes/op.
+public class KanjiBenchmarks {
+
+    private static final int[] IMAGE_SIZES = {250, 1000, 2000};
+    private static final int[] REFERENCE_ROWS = {200, 10000, 1000000};
+
+    public static void main(String[] args) throws Exception {
+        Bench bench = new Bench(args);
+        ArrayList<BufferedImage> glyphs = SampleGlyphs.load();
+
+        for (int size : IMAGE_SIZES)
+            addExtractionCases(bench, glyphs, size);
+        addQueryCases(bench, glyphs);
+        for (int rows : REFERENCE_ROWS)
+            addMatchingCases(bench, glyphs, rows);
+        bench.runAll();
+    }
+
+    // Cycles through the glyphs so every case sees all of them
+    private static class Glyphs {
+        private final BufferedImage[] images;
+        private final Processor[] processors;
+        private int next;
+
+        Glyphs(ArrayList<BufferedImage> glyphs, int size) {
+            images = new BufferedImage[glyphs.size()];
+            processors = new Processor[glyphs.size()];
+            for (int i = 0; i < images.length; i++) {
+                images[i] = size == SampleGlyphs.SIZE ? glyphs.get(i) : SampleGlyphs.scale(glyphs.get(i), size);
+                processors[i] = new Processor(images[i]);
+            }
+        }
+
+        BufferedImage nextImage() {
+            next = (next + 1) % images.length;
+            return images[next];
+        }
+
+        Processor nextProcessor() {
+            next = (next + 1) % images.length;
+            return processors[next];
+        }
+    }
+
+    private static void addExtractionCases(Bench bench, ArrayList<BufferedImage> glyphs, int size) {
+        String prefix = "extract." + size + ".";
+        if (!bench.wants(prefix))
+            return;
+        final Glyphs g = new Glyphs(glyphs, size);
+
+        bench.add(new Bench.Case(prefix + "binarize") {
+            public Object run() {
+                return new Processor(g.nextImage());
+            }
+        });
+        bench.add(new Bench.Case(prefix + "getAttributes") {
+            public Object run() {
+                return g.nextProcessor().getAttributes();
+            }
+        });
+        bench.add(new Bench.Case(prefix + "getAttributesBfs") {
+            public Object run() {
+                return g.nextProcessor().getAttributesBfs();
+            }
+        });
+        bench.add(new Bench.Case(prefix + "getComponents") {
+            public Object run() {
+                Processor p = g.nextProcessor();
+                return p.getComponents(0, 0, p.image.getHeight() - 1, p.image.getWidth() - 1);
+            }
+        });
+        bench.add(new Bench.Case(prefix + "getEnclosedRegions") {
+            public Object run() {
+                return g.nextProcessor().getEnclosedRegions();
+            }
+        });
+        bench.add(new Bench.Case(prefix + "countComponents") {
+            final ComponentLabeler labeler = new ComponentLabeler();
+            public Object run() {
+                Processor p = g.nextProcessor();
+                return labeler.countComponents(p.image, p.getComponentRegions(), new int[] {1, 0, 1, 1, 1, 1, 1, 1});
+            }
+        });
+        bench.add(new Bench.Case(prefix + "massFeatures") {
+            public Object run() {
+                Processor p = g.nextProcessor();
+                return p.getDensity() + p.getXCenter() + p.getYCenter() + p.getRegionWeight(p.minY, p.minX,
+                        p.maxY, p.minX + (p.maxX - p.minX) / 3);
+            }
+        });
+        bench.add(new Bench.Case(prefix + "normalized") {
+            final Normalizer normalizer = new Normalizer();
+            public Object run() {
+                return new Processor(normalizer.normalize(g.nextImage())).getAttributes();
+            }
+        });
+        // From the image to its attributes, with a new Processor each time and with a reused workspace
+        bench.add(new Bench.Case(prefix + "endToEnd") {
+            public Object run() {
+                return new Processor(g.nextImage()).getAttributes(new double[Processor.WEIGHTS.length]);
+            }
+        });
+        final ExtractionWorkspace workspace = new ExtractionWorkspace();
+        final double[] attributes = new double[Processor.WEIGHTS.length];
+        bench.add(new Bench.Case(prefix + "endToEnd.workspace") {
+            public Object run() {
+                return workspace.extract(g.nextImage(), false, attributes);
+            }
+        });
+        bench.add(new Bench.Case(prefix + "normalized.workspace") {
+            public Object run() {
+                return workspace.extract(g.nextImage(), true, attributes);
+            }
+        });
+    }
+
+    // End to end: binarize, extract and match against the shipped reference set
+    private static void addQueryCases(Bench bench, ArrayList<BufferedImage> glyphs) throws Exception {
+        if (!bench.wants("query."))
+            return;
+        final Glyphs g = new Glyphs(glyphs, SampleGlyphs.SIZE);
+        final ReferenceIndex index = ReferenceIndex.load("resources/data.txt");
+
+        bench.add(new Bench.Case("query.250.top10") {
+            public Object run() {
+                Processor p = new Processor(g.nextImage());
+                return index.findBestMatches(Processor.toArray(p.getAttributes()), 10);
+            }
+        });
+        // Every glyph is seen again and again, so after warmup these are all level 1 hits
+        final RecognitionCache cache = new RecognitionCache(64, 3600 * 1000);
+        bench.add(new Bench.Case("query.250.top10.cached") {
+            public Object run() {
+                return cache.findBestMatches(index, new Processor(g.nextImage()), 10);
+            }
+        });
+        // The same hits through an ExtractionWorkspace, as BatchRecognizer looks images up
+        final ExtractionWorkspace workspace = new ExtractionWorkspace();
+        bench.add(new Bench.Case("query.250.top10.cached.workspace") {
+            public Object run() {
+                return cache.findBestMatches(index, workspace.binarize(g.nextImage(), false), workspace, 10);
+            }
+        });
+        bench.add(new Bench.Case("query.250.top10.cascade") {
+            public Object run() {
+                Processor p = new Processor(g.nextImage());
+                return index.getCascade().findBestMatches(p.getCascadeQuery(), 10);
+            }
+        });
+    }
+
+    private static void addMatchingCases(Bench bench, ArrayList<BufferedImage> glyphs, int rows) {
+        String prefix = "match." + rows + ".";
+        if (!bench.wants(prefix))
+            return;
+        final double[][] queries = new double[glyphs.size()][];
+        final ReferenceIndex index = syntheticIndex(rows, new Random(rows));
+        final int[] next = new int[1];
+
+        for (int i = 0; i < queries.length; i++)
+            queries[i] = Processor.toArray(new Processor(glyphs.get(i)).getAttributes());
+
+        bench.add(new Bench.Case(prefix + "top10") {
+            public Object run() {
+                next[0] = (next[0] + 1) % queries.length;
+                return index.findBestMatches(queries[next[0]], 10);
+            }
+        });
+        bench.add(new Bench.Case(prefix + "top10.sequential") {
+            public Object run() {
+                next[0] = (next[0] + 1) % queries.length;
+                return index.getWeighted().findBestMatchesSequential(queries[next[0]], 10);
+            }
+        });
+        final WeightedIndex scalar = new WeightedIndex(index, Processor.WEIGHTS, DistanceKernel.scalar());
+        bench.add(new Bench.Case(prefix + "top10.scalarKernel") {
+            public Object run() {
+                next[0] = (next[0] + 1) % queries.length;
+                return scalar.findBestMatchesSequential(queries[next[0]], 10);
+            }
+        });
+        bench.add(new Bench.Case(prefix + "top10.perRow") {
+            public Object run() {
+                double[] query = queries[next[0] = (next[0] + 1) % queries.length];
+                MatchHeap heap = new MatchHeap(10);
+                for (int row = 0; row < index.getNumRows(); row++)
+                    heap.offer(row + 1, index.distance(row, query));
+                return heap.drainSorted();
+            }
+        });
+        // One pass for a batch of 12 queries, as RecognitionServer does it, against 12 separate scans
+        final int[] batchK = new int[queries.length];
+        Arrays.fill(batchK, 10);
+        bench.add(new Bench.Case(prefix + "top10.batchOf12") {
+            public Object run() {
+                return index.getWeighted().findBestMatches(queries, batchK);
+            }
+        });
+        bench.add(new Bench.Case(prefix + "top10.12Sequential") {
+            public Object run() {
+                Match[][] matches = new Match[queries.length][];
+                for (int q = 0; q < queries.length; q++)
+                    matches[q] = index.getWeighted().findBestMatchesSequential(queries[q], 10);
+                return matches;
+            }
+        });
+        bench.add(new Bench.Case(prefix + "top10.cascade") {
+            public Object run() {
+                next[0] = (next[0] + 1) % queries.length;
+                return index.getCascade().findBestMatches(queries[next[0]], 10);
+            }
+        });
+        for (QuantizedIndex.Precision precision : QuantizedIndex.Precision.values()) {
+            final QuantizedIndex quantized = new QuantizedIndex(index, Processor.WEIGHTS, precision);
+            bench.add(new Bench.Case(prefix + "top10." + precision.name().toLowerCase()) {
+                public Object run() {
+                    next[0] = (next[0] + 1) % queries.length;
+                    return quantized.findBestMatches(queries[next[0]], 10, QuantizedIndex.DEFAULT_CANDIDATES);
+                }
+            });
+        }
+        final VpTree tree = VpTree.build(index);
+        bench.add(new Bench.Case(prefix + "top10.vptree") {
+            public Object run() {
+                next[0] = (next[0] + 1) % queries.length;
+                return tree.findBestMatches(queries[next[0]], 10);
+            }
+        });
+        if (rows <= 10000) {
+            bench.add(new Bench.Case(prefix + "vptree.build") {
+                public Object run() {
+                    return VpTree.build(index);
+                }
+            });
+            bench.add(new Bench.Case(prefix + "fullRanking") {
+                public Object run() {
+                    next[0] = (next[0] + 1) % queries.length;
+                    return index.findBestMatches(queries[next[0]], index.getNumRows());
+                }
+            });
+        }
+    }
+
+    // Reference rows with the same shape as real ones: small counts for the component features and ratios elsewhere
+    static ReferenceIndex syntheticIndex(int rows, Random random) {
+        int numFeatures = Processor.WEIGHTS.length;
+        double[] data = new double[rows * numFeatures];
+
+        for (int row = 0; row < rows; row++) {
+            int offset = row * numFeatures;
+            data[offset] = 1 + random.nextInt(6);
+            data[offset + 1] = random.nextInt(4);
+            data[offset + 2] = 0.5 + random.nextDouble();
+            for (int i = 3; i < 12; i++)
+                data[offset + i] = random.nextDouble();
+            for (int i = 12; i < numFeatures; i++)
+                data[offset + i] = random.nextInt(4);
+        }
+        return new ReferenceIndex(data, rows, numFeatures);
+    }
+}
@@ -0,0 +1,90 @@
+import javax.imageio.ImageIO;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+// The fixed set of glyph images the benchmarks run on (bench/glyphs/1.gif..COUNT.gif). They're kanji-like
+// drawings made of the same 3 pixel anti-aliased strokes as DrawFrame's canvas: horizontal and vertical bars, boxes
+// that enclose regions, and a few diagonals. Running this class regenerates them; it uses fixed seeds, so the
+// images (and the benchmark results) are the same on every machine.
+public class SampleGlyphs {
+
+    static final String GLYPH_PATH = "bench/glyphs/";
+    static final int COUNT = 12;
+    static final int SIZE = 250;
+
+    public static BufferedImage draw(long seed) {
+        Random random = new Random(seed);
+        BufferedImage img = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2 = img.createGraphics();
+        int numStrokes = 3 + random.nextInt(8);
+
+        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g2.setPaint(Color.white);
+        g2.fillRect(0, 0, SIZE, SIZE);
+        g2.setPaint(Color.black);
+        g2.setStroke(new BasicStroke(3));
+
+        for (int i = 0; i < numStrokes; i++) {
+            int x1 = 30 + random.nextInt(190), y1 = 30 + random.nextInt(190);
+            int length = 40 + random.nextInt(150);
+            switch (random.nextInt(5)) {
+                case 0:
+                case 1:
+                    g2.drawLine(x1, y1, Math.min(x1 + length, 225), y1);
+                    break;
+                case 2:
+                    g2.drawLine(x1, y1, x1, Math.min(y1 + length, 225));
+                    break;
+                case 3:
+                    g2.drawRect(x1 / 2, y1 / 2, Math.min(length, 220 - x1 / 2), Math.min(length / 2 + 20, 220 - y1 / 2));
+                    break;
+                default:
+                    g2.drawLine(x1, y1, Math.max(x1 - length / 2, 25), Math.min(y1 + length / 2, 225));
+            }
+        }
+        g2.dispose();
+        return img;
+    }
+
+    public static ArrayList<BufferedImage> load() throws IOException {
+        ArrayList<BufferedImage> glyphs = new ArrayList<BufferedImage>();
+
+        for (int i = 1; i <= COUNT; i++) {
+            BufferedImage img = ImageIO.read(new File(GLYPH_PATH + i + ".gif"));
+            if (img == null)
+                throw new IOException("Can't read " + GLYPH_PATH + i + ".gif");
+            glyphs.add(img);
+        }
+        return glyphs;
+    }
+
+    // Scale a glyph up, as if it had been scanned at a higher resolution
+    public static BufferedImage scale(BufferedImage glyph, int size) {
+        BufferedImage img = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2 = img.createGraphics();
+
+        g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g2.drawImage(glyph, 0, 0, size, size, null);
+        g2.dispose();
+        return img;
+    }
+
+    public static void main(String[] args) throws IOException {
+        new File(GLYPH_PATH).mkdirs();
+        for (int i = 1; i <= COUNT; i++) {
+            BufferedImage gif = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_BYTE_INDEXED);
+            Graphics2D g2 = gif.createGraphics();
+            g2.drawImage(draw(i), 0, 0, null);
+            g2.dispose();
+            ImageIO.write(gif, "gif", new File(GLYPH_PATH + i + ".gif"));
+        }
+        System.out.println("Wrote " + COUNT + " glyphs to " + GLYPH_PATH);
+    }
+}
@@ -0,0 +1,89 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+// DistanceKernel on the JDK Vector API, using the widest vectors the CPU supports. This needs the incubator module,
+// so it's kept out of src/ and only ever loaded reflectively by DistanceKernel.
+final class VectorDistanceKernel extends DistanceKernel {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    // Single-precision values are loaded as many at a time as there are doubles in a vector
+    private static final VectorSpecies<Float> HALF_FLOATS = VectorSpecies.of(float.class,
+            VectorShape.forBitSize(SPECIES.vectorBitSize() / 2));
+
+    // Quantized codes are widened to floats, so they're loaded in vectors with as many lanes as a float vector
+    // (at least 8, since there's no vector of 4 bytes)
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED.length() >= 8
+            ? FloatVector.SPECIES_PREFERRED : FloatVector.SPECIES_256;
+    private static final VectorSpecies<Integer> INTS = VectorSpecies.of(int.class, FLOATS.vectorShape());
+    private static final VectorSpecies<Byte> BYTES = VectorSpecies.of(byte.class,
+            VectorShape.forBitSize(FLOATS.length() * 8));
+    private static final VectorSpecies<Short> SHORTS = VectorSpecies.of(short.class,
+            VectorShape.forBitSize(FLOATS.length() * 16));
+
+    public void accumulate(ByteBuffer values, boolean singlePrecision, int offset, double weight, double query,
+                           double[] out, int n) {
+        DoubleVector weightVector = DoubleVector.broadcast(SPECIES, weight);
+        DoubleVector queryVector = DoubleVector.broadcast(SPECIES, query);
+        int i = 0;
+
+        for (int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length()) {
+            DoubleVector value = singlePrecision
+                    ? (DoubleVector)FloatVector.fromByteBuffer(HALF_FLOATS, values, (offset + i) * 4,
+                            ByteOrder.LITTLE_ENDIAN).convertShape(VectorOperators.F2D, SPECIES, 0)
+                    : DoubleVector.fromByteBuffer(SPECIES, values, (offset + i) * 8, ByteOrder.LITTLE_ENDIAN);
+            DoubleVector diff = value.mul(weightVector).sub(queryVector);
+            diff.mul(diff).add(DoubleVector.fromArray(SPECIES, out, i)).intoArray(out, i);
+        }
+        for (; i < n; i++) {
+            double value = singlePrecision ? values.getFloat((offset + i) * 4) : values.getDouble((offset + i) * 8);
+            double diff = weight * value - query;
+            out[i] += diff * diff;
+        }
+    }
+
+    public void accumulate(byte[] codes, int offset, float query, float scale2, float[] out, int n) {
+        FloatVector queryVector = FloatVector.broadcast(FLOATS, query);
+        int i = 0;
+
+        for (int bound = FLOATS.loopBound(n); i < bound; i += FLOATS.length()) {
+            FloatVector code = (FloatVector)ByteVector.fromArray(BYTES, codes, offset + i)
+                    .convertShape(VectorOperators.B2F, FLOATS, 0);
+            FloatVector diff = code.sub(queryVector);
+            diff.mul(diff).mul(scale2).add(FloatVector.fromArray(FLOATS, out, i)).intoArray(out, i);
+        }
+        for (; i < n; i++) {
+            float diff = codes[offset + i] - query;
+            out[i] += diff * diff * scale2;
+        }
+    }
+
+    public void accumulate(short[] halves, int offset, float query, float scale2, float[] out, int n) {
+        FloatVector queryVector = FloatVector.broadcast(FLOATS, query);
+        int i = 0;
+
+        for (int bound = FLOATS.loopBound(n); i < bound; i += FLOATS.length()) {
+            IntVector bits = (IntVector)ShortVector.fromArray(SHORTS, halves, offset + i)
+                    .convertShape(VectorOperators.S2I, INTS, 0);
+            FloatVector code = bits.and(0x7FFF).lanewise(VectorOperators.LSHL, 13).reinterpretAsFloats().mul(0x1p112f);
+            FloatVector diff = code.sub(queryVector);
+            diff.mul(diff).mul(scale2).add(FloatVector.fromArray(FLOATS, out, i)).intoArray(out, i);
+        }
+        for (; i < n; i++) {
+            float diff = QuantizedIndex.decodeNonNegative(halves[offset + i]) - query;
+            out[i] += diff * diff * scale2;
+        }
+    }
+
+    public String getName() {
+        return "vector(" + SPECIES.length() + " x double)";
+    }
+}
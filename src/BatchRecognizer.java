@@ -0,0 +1,363 @@
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+// Recognizes a whole set of glyph images without the GUI. Images are read and processed in parallel on a fixed
+// pool of threads and matched against one shared ReferenceIndex, and the results are written out as they're ready,
+// in the order the images were given. At most 'maxInFlight' images are queued or being processed at any time; when
+// the writer falls behind, reading new images waits for it, so memory use doesn't depend on how many images there are.
+// Repeated glyphs are only matched once (see RecognitionCache).
+//
+// Usage: BatchRecognizer [--format jsonl|csv] [--top k] [--threads n] [--out file] [--metrics] [--normalize]
+//                        (directory | image | @list)...
+// where @list names a file with one image path per line, --metrics prints per-stage timings at the end and
+// --normalize crops and scales every image first (see Normalizer).
+public class BatchRecognizer {
+
+    static final String KANJI_LIST_PATH = "/home/joey/IdeaProjects/Kanji Detection/resources/kanjilist.txt";
+
+    public enum Format { JSONL, CSV }
+
+    private final ReferenceIndex index;
+    private final String kanjiStr;
+    private final int numMatches;
+    private final int numThreads;
+    private final int maxInFlight;
+    private boolean normalize;
+
+    public BatchRecognizer(ReferenceIndex index, String kanjiStr, int numMatches, int numThreads, int maxInFlight) {
+        if (numMatches <= 0 || numThreads <= 0 || maxInFlight <= 0)
+            throw new IllegalArgumentException("numMatches, numThreads and maxInFlight must be positive");
+        this.index = index;
+        this.kanjiStr = kanjiStr;
+        this.numMatches = numMatches;
+        this.numThreads = numThreads;
+        this.maxInFlight = maxInFlight;
+    }
+
+    // Whether images go through a Normalizer before their features are extracted
+    public void setNormalize(boolean normalize) {
+        this.normalize = normalize;
+    }
+
+    // Recognize every image from 'images' and write one result per image to 'out'. Returns the number of images
+    // that couldn't be recognized (they get a result with an error rather than matches).
+    public int recognize(final Iterator<File> images, Writer out, Format format)
+            throws IOException, InterruptedException {
+        final ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        final BlockingQueue<Future<Result>> pending = new ArrayBlockingQueue<Future<Result>>(maxInFlight);
+        final RuntimeException[] readerError = new RuntimeException[1];
+        final Future<Result> endOfInput = new FutureTask<Result>(new Callable<Result>() {
+            public Result call() {
+                return null;
+            }
+        });
+        int numFailed = 0;
+
+        // Queue up work from a separate thread, so the queue can fill up while this one is writing results
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    try {
+                        while (images.hasNext()) {
+                            final File image = images.next();
+                            pending.put(pool.submit(new Callable<Result>() {
+                                public Result call() {
+                                    return recognize(image);
+                                }
+                            }));
+                        }
+                    } catch (RuntimeException e) {
+                        readerError[0] = e;
+                    }
+                    pending.put(endOfInput);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "batch-reader");
+
+        reader.start();
+        try {
+            if (format == Format.CSV)
+                out.write("image,rank,id,kanji,distance,error\n");
+            for (Future<Result> next = pending.take(); next != endOfInput; next = pending.take()) {
+                Result result;
+                try {
+                    result = next.get();
+                } catch (ExecutionException e) {
+                    throw new IOException(e.getCause());
+                }
+                if (result.error != null)
+                    numFailed++;
+                write(result, out, format);
+            }
+            out.flush();
+            reader.join();
+            if (readerError[0] instanceof UncheckedIOException)
+                throw ((UncheckedIOException)readerError[0]).getCause();
+            if (readerError[0] != null)
+                throw readerError[0];
+        } finally {
+            reader.interrupt();
+            pool.shutdownNow();
+        }
+        return numFailed;
+    }
+
+    private Result recognize(File image) {
+        try {
+            BufferedImage img = ImageIO.read(image);
+            if (img == null)
+                return new Result(image, null, "unsupported image format");
+            long start = RecognitionMetrics.start();
+            ExtractionWorkspace workspace = ExtractionWorkspace.forCurrentThread();
+            Match[] matches = RecognitionCache.getShared().findBestMatches(index, workspace.binarize(img, normalize),
+                    workspace, numMatches);
+            RecognitionMetrics.stop(RecognitionMetrics.Stage.QUERY, start);
+            return new Result(image, matches, null);
+        } catch (IOException e) {
+            return new Result(image, null, e.toString());
+        } catch (RuntimeException e) {
+            return new Result(image, null, e.toString());
+        }
+    }
+
+    private void write(Result result, Writer out, Format format) throws IOException {
+        StringBuilder line = new StringBuilder();
+        String path = result.image.getPath();
+
+        if (format == Format.JSONL) {
+            line.append("{\"image\":").append(jsonString(path));
+            if (result.error != null) {
+                line.append(",\"error\":").append(jsonString(result.error));
+            } else {
+                line.append(",\"matches\":[");
+                for (int i = 0; i < result.matches.length; i++) {
+                    Match match = result.matches[i];
+                    line.append(i == 0 ? "" : ",").append("{\"id\":").append(match.getKanjiId())
+                            .append(",\"kanji\":").append(jsonString(kanji(match)))
+                            .append(",\"distance\":").append(jsonNumber(match.getDistance())).append("}");
+                }
+                line.append("]");
+            }
+            line.append("}\n");
+        } else {
+            if (result.error != null) {
+                line.append(csvString(path)).append(",,,,,").append(csvString(result.error)).append("\n");
+            } else {
+                for (int i = 0; i < result.matches.length; i++) {
+                    Match match = result.matches[i];
+                    line.append(csvString(path)).append(",").append(i + 1).append(",").append(match.getKanjiId())
+                            .append(",").append(csvString(kanji(match))).append(",").append(match.getDistance())
+                            .append(",\n");
+                }
+            }
+        }
+        out.write(line.toString());
+    }
+
+    private String kanji(Match match) {
+        return match.getKanjiId() <= kanjiStr.length() ? kanjiStr.charAt(match.getKanjiId() - 1) + "" : "";
+    }
+
+    static String jsonString(String s) {
+        StringBuilder json = new StringBuilder("\"");
+
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\')
+                json.append('\\').append(c);
+            else if (c < 0x20)
+                json.append(String.format("\\u%04x", (int)c));
+            else
+                json.append(c);
+        }
+        return json.append('"').toString();
+    }
+
+    // JSON has no NaN or infinity (an empty image has NaN attributes, and so NaN distances)
+    static String jsonNumber(double d) {
+        return Double.isNaN(d) || Double.isInfinite(d) ? "null" : Double.toString(d);
+    }
+
+    private static String csvString(String s) {
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0)
+            return s;
+        return "\"" + s.replace("\"", "\"\"") + "\"";
+    }
+
+    private static class Result {
+        final File image;
+        final Match[] matches;
+        final String error;
+
+        Result(File image, Match[] matches, String error) {
+            this.image = image;
+            this.matches = matches;
+            this.error = error;
+        }
+    }
+
+    // Lazily walks the images named on the command line, so a directory of a million images is never listed into
+    // memory all at once
+    private static class ImageIterator implements Iterator<File> {
+        private final Iterator<String> args;
+        private Iterator<Path> directory;
+        private DirectoryStream<Path> directoryStream;
+        private BufferedReader list;
+        private File next;
+
+        ImageIterator(ArrayList<String> args) {
+            this.args = args.iterator();
+        }
+
+        public boolean hasNext() {
+            try {
+                while (next == null) {
+                    if (directory != null && directory.hasNext()) {
+                        Path path = directory.next();
+                        if (Files.isRegularFile(path))
+                            next = path.toFile();
+                    } else if (list != null) {
+                        String line = list.readLine();
+                        if (line == null) {
+                            list.close();
+                            list = null;
+                        } else if (line.trim().length() > 0) {
+                            next = new File(line.trim());
+                        }
+                    } else if (args.hasNext()) {
+                        if (directoryStream != null) {
+                            directoryStream.close();
+                            directoryStream = null;
+                            directory = null;
+                        }
+                        String arg = args.next();
+                        if (arg.startsWith("@")) {
+                            list = new BufferedReader(new InputStreamReader(new FileInputStream(arg.substring(1)),
+                                    "utf-8"));
+                        } else if (new File(arg).isDirectory()) {
+                            directoryStream = Files.newDirectoryStream(Paths.get(arg));
+                            directory = directoryStream.iterator();
+                        } else {
+                            next = new File(arg);
+                        }
+                    } else {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        public File next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            File image = next;
+            next = null;
+            return image;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    public static void main(String[] args) {
+        Format format = Format.JSONL;
+        int numMatches = 10;
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        String outPath = null;
+        boolean metrics = false, normalize = false;
+        ArrayList<String> inputs = new ArrayList<String>();
+
+        // A bad value for any option is a usage error, like a missing input
+        String error = null;
+        int i = 0;
+        try {
+            for (; i < args.length; i++) {
+                if (args[i].equals("--format") && i + 1 < args.length)
+                    format = Format.valueOf(args[++i].toUpperCase());
+                else if (args[i].equals("--top") && i + 1 < args.length)
+                    numMatches = Integer.parseInt(args[++i]);
+                else if (args[i].equals("--threads") && i + 1 < args.length)
+                    numThreads = Integer.parseInt(args[++i]);
+                else if (args[i].equals("--out") && i + 1 < args.length)
+                    outPath = args[++i];
+                else if (args[i].equals("--metrics"))
+                    metrics = true;
+                else if (args[i].equals("--normalize"))
+                    normalize = true;
+                else
+                    inputs.add(args[i]);
+            }
+            if (numMatches < 1 || numThreads < 1)
+                error = "--top and --threads must be at least 1";
+        } catch (IllegalArgumentException e) { // From valueOf() or parseInt(), after 'i' moved on to the value
+            error = "Bad value for " + args[i - 1] + ": " + args[i];
+        }
+        if (error != null || inputs.isEmpty()) {
+            if (error != null)
+                System.err.println(error);
+            System.err.println("Usage: BatchRecognizer [--format jsonl|csv] [--top k] [--threads n] [--out file] "
+                    + "[--metrics] [--normalize] (directory | image | @list)...");
+            System.exit(2);
+        }
+
+        RecognitionMetrics.get().setEnabled(metrics);
+        try {
+            BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(KANJI_LIST_PATH),
+                    "utf-8"));
+            String kanjiStr = br.readLine();
+            br.close();
+
+            BatchRecognizer recognizer = new BatchRecognizer(ReferenceIndex.getShared(), kanjiStr, numMatches,
+                    numThreads, numThreads * 4);
+            recognizer.setNormalize(normalize);
+            Writer out = new BufferedWriter(new OutputStreamWriter(
+                    outPath == null ? System.out : new FileOutputStream(outPath), "utf-8"));
+            int numFailed = recognizer.recognize(new ImageIterator(inputs), out, format);
+            out.close();
+            if (numFailed > 0)
+                System.err.println(numFailed + " images could not be recognized");
+            if (metrics) {
+                for (String line : RecognitionMetrics.get().getStageLatencies())
+                    System.err.println(line);
+                for (String line : RecognitionCache.getShared().getStatistics())
+                    System.err.println(line);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
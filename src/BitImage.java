@@ -0,0 +1,258 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.util.Arrays;
+
+// A binary image packed 64 pixels to a long. Each row starts on a fresh word, pixel (y,x) being bit (x % 64) of
+// words[y * wordsPerRow + x / 64], and any bits past the right edge of the image are always kept at 0 so that
+// counting and inverting can work a whole word at a time.
+public final class BitImage {
+
+    private final int width, height;
+    private final int wordsPerRow;
+    private final long[] words;
+
+    public BitImage(int width, int height) {
+        this.width = width;
+        this.height = height;
+        wordsPerRow = (width + 63) >>> 6;
+        words = new long[wordsPerRow * height];
+    }
+
+    // Binarize an image: a pixel is set when the blue component of its RGB value is below 'threshold'. The pixels
+    // are read a row at a time straight from the raster when the image type allows it.
+    public static BitImage fromImage(BufferedImage img, int threshold) {
+        BitImage bits = new BitImage(img.getWidth(), img.getHeight());
+        bits.binarize(img, threshold, new int[img.getWidth()], new int[paletteSize(img)]);
+        return bits;
+    }
+
+    // The same into this image, which must be the size of 'img', reusing the scratch space in 'row' (at least as long
+    // as the image is wide) and 'palette' (at least paletteSize(img) long), so nothing is allocated
+    void binarize(BufferedImage img, int threshold, int[] row, int[] palette) {
+        if (img.getWidth() != width || img.getHeight() != height)
+            throw new IllegalArgumentException("Image is " + img.getWidth() + "x" + img.getHeight() + ", not "
+                    + width + "x" + height);
+        Raster raster = img.getRaster();
+
+        if (img.getType() == BufferedImage.TYPE_INT_RGB || img.getType() == BufferedImage.TYPE_INT_ARGB) {
+            for (int y = 0; y < height; y++) {
+                raster.getDataElements(0, y, width, 1, row);
+                setRow(y, row, threshold);
+            }
+        } else if (paletteSize(img) > 0) {
+            // Decide once per palette entry instead of once per pixel
+            IndexColorModel colors = (IndexColorModel)img.getColorModel();
+            Arrays.fill(palette, 0, paletteSize(img), 0);
+            for (int i = 0; i < colors.getMapSize(); i++)
+                palette[i] = colors.getRGB(i);
+            for (int y = 0; y < height; y++) {
+                raster.getSamples(0, y, width, 1, 0, row);
+                for (int x = 0; x < width; x++)
+                    row[x] = palette[row[x]];
+                setRow(y, row, threshold);
+            }
+        } else {
+            for (int y = 0; y < height; y++) {
+                img.getRGB(0, y, width, 1, row, 0, width);
+                setRow(y, row, threshold);
+            }
+        }
+    }
+
+    // Entries needed for the RGB value of every possible pixel of a palette image, and 0 for any other image
+    static int paletteSize(BufferedImage img) {
+        if (img.getColorModel() instanceof IndexColorModel && img.getRaster().getNumBands() == 1)
+            return 1 << img.getColorModel().getPixelSize();
+        return 0;
+    }
+
+    // Binarize the rectangle [ystart, yend] x [xstart, xend] of 'img' again, leaving the rest of this image as it is.
+    // This is how a drawing surface keeps its BitImage up to date when only a small part of it has changed.
+    public void update(BufferedImage img, int threshold, int ystart, int xstart, int yend, int xend) {
+        xstart = Math.max(xstart, 0);
+        ystart = Math.max(ystart, 0);
+        xend = Math.min(xend, Math.min(width, img.getWidth()) - 1);
+        yend = Math.min(yend, Math.min(height, img.getHeight()) - 1);
+        if (xstart > xend || ystart > yend)
+            return;
+
+        int n = xend - xstart + 1;
+        int[] row = new int[n];
+        boolean direct = img.getType() == BufferedImage.TYPE_INT_RGB || img.getType() == BufferedImage.TYPE_INT_ARGB;
+        for (int y = ystart; y <= yend; y++) {
+            if (direct)
+                img.getRaster().getDataElements(xstart, y, n, 1, row);
+            else
+                img.getRGB(xstart, y, n, 1, row, 0, n);
+            int base = y * wordsPerRow;
+            for (int i = 0; i < n; i++) {
+                int x = xstart + i;
+                if ((row[i] & 0xFF) < threshold)
+                    words[base + (x >>> 6)] |= 1L << x;
+                else
+                    words[base + (x >>> 6)] &= ~(1L << x);
+            }
+        }
+    }
+
+    public BitImage copy() {
+        BitImage copy = new BitImage(width, height);
+        System.arraycopy(words, 0, copy.words, 0, words.length);
+        return copy;
+    }
+
+    // A copy of the rectangle [ystart, yend] x [xstart, xend], which must lie inside the image
+    public BitImage crop(int ystart, int xstart, int yend, int xend) {
+        BitImage crop = new BitImage(Math.max(xend - xstart + 1, 0), Math.max(yend - ystart + 1, 0));
+
+        for (int y = 0; y < crop.height; y++) {
+            for (int x = nextBit(ystart + y, xstart, true); x <= xend; ) {
+                int end = Math.min(nextBit(ystart + y, x, false), xend + 1);
+                for (; x < end; x++)
+                    crop.set(y, x - xstart);
+                x = x > xend ? x : nextBit(ystart + y, x, true);
+            }
+        }
+        return crop;
+    }
+
+    // Copy row y into row toY of 'to', which must be as wide as this image
+    public void copyRow(int y, BitImage to, int toY) {
+        if (to.width != width)
+            throw new IllegalArgumentException("Widths differ: " + width + " and " + to.width);
+        System.arraycopy(words, y * wordsPerRow, to.words, toY * wordsPerRow, wordsPerRow);
+    }
+
+    public boolean equals(Object o) {
+        if (!(o instanceof BitImage))
+            return false;
+        BitImage other = (BitImage)o;
+        return width == other.width && height == other.height && Arrays.equals(words, other.words);
+    }
+
+    public int hashCode() {
+        return 31 * (31 * width + height) + Arrays.hashCode(words);
+    }
+
+    private void setRow(int y, int[] rgbs, int threshold) {
+        int base = y * wordsPerRow;
+
+        for (int w = 0; w < wordsPerRow; w++) {
+            long word = 0;
+            int end = Math.min(width, (w + 1) << 6);
+            for (int x = w << 6; x < end; x++) {
+                if ((rgbs[x] & 0xFF) < threshold)
+                    word |= 1L << x;
+            }
+            words[base + w] = word;
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public boolean get(int y, int x) {
+        return (words[y * wordsPerRow + (x >>> 6)] & (1L << x)) != 0;
+    }
+
+    public void set(int y, int x) {
+        words[y * wordsPerRow + (x >>> 6)] |= 1L << x;
+    }
+
+    public void clear() {
+        Arrays.fill(words, 0);
+    }
+
+    // Clear rows ystart to yend (inclusive) only
+    public void clearRows(int ystart, int yend) {
+        ystart = Math.max(ystart, 0);
+        yend = Math.min(yend, height - 1);
+        if (ystart <= yend)
+            Arrays.fill(words, ystart * wordsPerRow, (yend + 1) * wordsPerRow, 0);
+    }
+
+    // Flip every pixel of the image, leaving the padding bits at the end of each row unset
+    public void invert() {
+        long lastMask = (width & 63) == 0 ? -1L : (1L << width) - 1;
+
+        for (int base = 0; base < words.length; base += wordsPerRow) {
+            for (int w = 0; w < wordsPerRow - 1; w++)
+                words[base + w] = ~words[base + w];
+            words[base + wordsPerRow - 1] = ~words[base + wordsPerRow - 1] & lastMask;
+        }
+    }
+
+    // Number of set pixels in row y between columns xstart and xend (inclusive)
+    public int count(int y, int xstart, int xend) {
+        xstart = Math.max(xstart, 0);
+        xend = Math.min(xend, width - 1);
+        if (y < 0 || y >= height || xstart > xend)
+            return 0;
+
+        int base = y * wordsPerRow;
+        int first = xstart >>> 6, last = xend >>> 6;
+        long firstMask = -1L << xstart;
+        long lastMask = -1L >>> (63 - (xend & 63));
+
+        if (first == last)
+            return Long.bitCount(words[base + first] & firstMask & lastMask);
+        int count = Long.bitCount(words[base + first] & firstMask);
+        for (int w = first + 1; w < last; w++)
+            count += Long.bitCount(words[base + w]);
+        return count + Long.bitCount(words[base + last] & lastMask);
+    }
+
+    // Number of set pixels in the rectangle [ystart, yend] x [xstart, xend]
+    public int count(int ystart, int xstart, int yend, int xend) {
+        int count = 0;
+
+        for (int y = Math.max(ystart, 0); y <= Math.min(yend, height - 1); y++)
+            count += count(y, xstart, xend);
+        return count;
+    }
+
+    // The first column at or after 'from' in row y whose pixel is 'value', or the width of the image if there's none
+    public int nextBit(int y, int from, boolean value) {
+        if (from >= width)
+            return width;
+
+        int base = y * wordsPerRow;
+        int w = from >>> 6;
+        long word = (value ? words[base + w] : ~words[base + w]) & (-1L << from);
+
+        while (word == 0) {
+            if (++w == wordsPerRow)
+                return width;
+            word = value ? words[base + w] : ~words[base + w];
+        }
+        return Math.min(width, (w << 6) + Long.numberOfTrailingZeros(word));
+    }
+
+    // Leftmost set column in row y, or -1 if the row is empty
+    public int firstInRow(int y) {
+        int base = y * wordsPerRow;
+
+        for (int w = 0; w < wordsPerRow; w++) {
+            if (words[base + w] != 0)
+                return (w << 6) + Long.numberOfTrailingZeros(words[base + w]);
+        }
+        return -1;
+    }
+
+    // Rightmost set column in row y, or -1 if the row is empty
+    public int lastInRow(int y) {
+        int base = y * wordsPerRow;
+
+        for (int w = wordsPerRow - 1; w >= 0; w--) {
+            if (words[base + w] != 0)
+                return (w << 6) + 63 - Long.numberOfLeadingZeros(words[base + w]);
+        }
+        return -1;
+    }
+}
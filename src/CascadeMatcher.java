@@ -0,0 +1,176 @@
+import java.util.Arrays;
+import java.util.HashMap;
+
+// An exact matcher that rules reference rows out in stages instead of computing every row's full distance. The
+// first two attributes (the number of components and of enclosed regions) are small whole numbers with large
+// weights, so the rows are grouped into buckets sharing both values. For a query, each bucket's distance over those
+// two attributes is a lower bound for every row in it:
+//
+//   1. buckets are visited in order of that lower bound, and once the heap is full, the first bucket whose bound
+//      can't beat the k'th best match ends the search (every bucket after it is at least as far away);
+//   2. within a bucket, a row's distance is summed a few attributes at a time and abandoned as soon as it's already
+//      worse than the k'th best;
+//   3. the per-third component counts are last in the sum, so a query can supply them lazily (see Query), and they
+//      are only computed once some row survives everything before them.
+//
+// Squared distances are summed in the same order as WeightedIndex.scan(), and partial sums never decrease, so the
+// matches (and their ties) are identical to the brute-force scan's. Rows are stored row-major, which suits
+// abandoning them early but doesn't vectorize like WeightedIndex's columns do, so the cascade only wins where it
+// skips most of the rows: it's the faster matcher for a top-k query on a reference set the size of 'data.txt', but
+// a full ranking (where nothing can be skipped) should still use the plain scan.
+public final class CascadeMatcher {
+
+    // Attributes a Query has to provide up front; the rest (the per-third component counts) can wait
+    static final int NUM_CHEAP = 12;
+
+    // A query whose expensive attributes are computed on demand. getAttributes() is called at most once, and only if
+    // some reference row survives the cheap attributes; with k > 0 and a non-empty index that's usually the case, so
+    // the saving is in the rows that are skipped rather than in the query.
+    public interface Query {
+        // At least the first NUM_CHEAP attributes (more are ignored)
+        double[] getCheapAttributes();
+
+        // All the attributes
+        double[] getAttributes();
+    }
+
+    private final double[] weights;
+    private final int numRows, numFeatures, numCheap;
+    private final int[] stageEnds;      // A row is abandoned if it's already too far at the end of a stage
+
+    private final int numBuckets;
+    private final double[] bucketKeys;  // The two weighted bucket attributes of each bucket
+    private final int[] bucketStarts;   // Bucket b holds rows [bucketStarts[b], bucketStarts[b + 1]) of 'ids'
+    private final int[] ids;            // Kanji ids, bucket by bucket
+    private final double[] rows;        // Weighted attributes in the same order as 'ids', row-major
+
+    public CascadeMatcher(ReferenceIndex index, double[] weights) {
+        if (index.getNumFeatures() < 2)
+            throw new IllegalArgumentException("Need at least the component and enclosed region counts");
+        this.weights = weights.clone();
+        numRows = index.getNumRows();
+        numFeatures = index.getNumFeatures();
+        numCheap = Math.min(NUM_CHEAP, numFeatures);
+        stageEnds = new int[] {2, Math.min(6, numCheap), numCheap, numFeatures};
+
+        // Bucket on the exact values, so the bound computed from a bucket's key is the exact partial sum of its rows
+        HashMap<String, Integer> bucketOf = new HashMap<String, Integer>();
+        int[] rowBuckets = new int[numRows];
+        int[] counts = new int[numRows + 1];
+        for (int row = 0; row < numRows; row++) {
+            String key = Double.doubleToLongBits(index.get(row, 0)) + " " + Double.doubleToLongBits(index.get(row, 1));
+            Integer bucket = bucketOf.get(key);
+            if (bucket == null) {
+                bucket = bucketOf.size();
+                bucketOf.put(key, bucket);
+            }
+            rowBuckets[row] = bucket;
+            counts[bucket]++;
+        }
+        numBuckets = bucketOf.size();
+
+        bucketKeys = new double[2 * numBuckets];
+        bucketStarts = new int[numBuckets + 1];
+        for (int b = 0; b < numBuckets; b++)
+            bucketStarts[b + 1] = bucketStarts[b] + counts[b];
+        int[] next = Arrays.copyOf(bucketStarts, numBuckets);
+        ids = new int[numRows];
+        rows = new double[numRows * numFeatures];
+        for (int row = 0; row < numRows; row++) {
+            int b = rowBuckets[row];
+            int pos = next[b]++;
+            ids[pos] = row + 1;
+            for (int i = 0; i < numFeatures; i++)
+                rows[pos * numFeatures + i] = weights[i] * index.get(row, i);
+            bucketKeys[2 * b] = rows[pos * numFeatures];
+            bucketKeys[2 * b + 1] = rows[pos * numFeatures + 1];
+        }
+    }
+
+    public int getNumBuckets() {
+        return numBuckets;
+    }
+
+    // The k best matches for the given (unweighted) attributes, identical to WeightedIndex.findBestMatches()
+    public Match[] findBestMatches(final double[] attributes, int k) {
+        return findBestMatches(new Query() {
+            public double[] getCheapAttributes() {
+                return attributes;
+            }
+
+            public double[] getAttributes() {
+                return attributes;
+            }
+        }, k);
+    }
+
+    public Match[] findBestMatches(Query query, int k) {
+        MatchHeap heap = new MatchHeap(Math.min(k, numRows));
+        double[] cheap = query.getCheapAttributes();
+        double[] weighted = new double[numFeatures];
+        boolean complete = numCheap == numFeatures;
+
+        for (int i = 0; i < numCheap; i++)
+            weighted[i] = weights[i] * cheap[i];
+        if (heap.capacity() == 0)
+            return heap.drainSorted();
+
+        // Lower bound of every bucket: the first two terms of the sum, in the order the scan adds them
+        double[] bounds = new double[numBuckets];
+        int[] order = new int[numBuckets];
+        for (int b = 0; b < numBuckets; b++) {
+            double diff0 = bucketKeys[2 * b] - weighted[0];
+            double diff1 = bucketKeys[2 * b + 1] - weighted[1];
+            double bound = 0;
+            bound += diff0 * diff0;
+            bound += diff1 * diff1;
+            bounds[b] = bound;
+            order[b] = b;
+        }
+        sortByBound(order, bounds);
+
+        long compared = 0;
+        for (int n = 0; n < numBuckets; n++) {
+            int b = order[n];
+            if (bounds[b] > heap.worstDistance())
+                break;
+
+            for (int pos = bucketStarts[b]; pos < bucketStarts[b + 1]; pos++) {
+                int offset = pos * numFeatures;
+                double sum = bounds[b];
+                double worst = heap.worstDistance();
+
+                compared++;
+                for (int stage = 1; stage < stageEnds.length && !(sum > worst); stage++) {
+                    if (stageEnds[stage - 1] == numCheap && !complete) {
+                        double[] all = query.getAttributes();
+                        for (int j = numCheap; j < numFeatures; j++)
+                            weighted[j] = weights[j] * all[j];
+                        complete = true;
+                    }
+                    for (int i = stageEnds[stage - 1]; i < stageEnds[stage]; i++) {
+                        double diff = rows[offset + i] - weighted[i];
+                        sum += diff * diff;
+                    }
+                }
+                if (!(sum > worst))
+                    heap.offer(ids[pos], sum);
+            }
+        }
+        RecognitionMetrics.count(RecognitionMetrics.Counter.REFERENCE_ROWS_COMPARED, compared);
+        return WeightedIndex.toDistances(heap.drainSorted());
+    }
+
+    // Insertion sort: there are only a few dozen buckets, and NaN bounds (from an empty image) go last
+    private static void sortByBound(int[] order, double[] bounds) {
+        for (int i = 1; i < order.length; i++) {
+            int b = order[i];
+            int j = i - 1;
+            while (j >= 0 && Double.compare(bounds[order[j]], bounds[b]) > 0) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = b;
+        }
+    }
+}
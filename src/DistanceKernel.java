@@ -0,0 +1,70 @@
+import java.nio.ByteBuffer;
+
+// The inner loop of matching: adds (weight * value - query)^2 to out[i] for a run of reference rows, one feature at a
+// time (see WeightedIndex). An implementation on the JDK's Vector API (VectorDistanceKernel, in src-vector) is used
+// when the JVM was started with "--add-modules jdk.incubator.vector"; otherwise, or when the system property
+// "kanji.scalarKernel" is set, it's the loops below. Both round weight * value to a double and compute
+// (a - b) * (a - b) + acc without fused multiply-adds, so they give bit-for-bit the same distances, and the same ones
+// as weighting every value up front would.
+public abstract class DistanceKernel {
+
+    private static final DistanceKernel INSTANCE = load();
+
+    public static DistanceKernel get() {
+        return INSTANCE;
+    }
+
+    public static DistanceKernel scalar() {
+        return new Scalar();
+    }
+
+    private static DistanceKernel load() {
+        if (Boolean.getBoolean("kanji.scalarKernel"))
+            return new Scalar();
+        try {
+            return (DistanceKernel)Class.forName("VectorDistanceKernel").getDeclaredConstructor().newInstance();
+        } catch (Exception e) {
+            return new Scalar();
+        } catch (LinkageError e) { // The class is there but the incubator module isn't
+            return new Scalar();
+        }
+    }
+
+    // The values are those of a ReferenceIndex (see getValues()): little-endian float64s, or float32s widened to
+    // doubles, starting at value number 'offset'
+    public void accumulate(ByteBuffer values, boolean singlePrecision, int offset, double weight, double query,
+                           double[] out, int n) {
+        for (int i = 0; i < n; i++) {
+            double value = singlePrecision ? values.getFloat((offset + i) * 4) : values.getDouble((offset + i) * 8);
+            double diff = weight * value - query;
+            out[i] += diff * diff;
+        }
+    }
+
+    // The same for the quantized columns of a QuantizedIndex, in single precision: adds scale2 * (code - query)^2 to
+    // out[i], with the code read as a signed byte or decoded from a (finite, non-negative) half-precision float.
+    // These loops are the reference; an implementation has to give the same results bit for bit.
+    public void accumulate(byte[] codes, int offset, float query, float scale2, float[] out, int n) {
+        for (int i = 0; i < n; i++) {
+            float diff = codes[offset + i] - query;
+            out[i] += diff * diff * scale2;
+        }
+    }
+
+    public void accumulate(short[] halves, int offset, float query, float scale2, float[] out, int n) {
+        for (int i = 0; i < n; i++) {
+            float diff = QuantizedIndex.decodeNonNegative(halves[offset + i]) - query;
+            out[i] += diff * diff * scale2;
+        }
+    }
+
+    public String getName() {
+        return getClass().getSimpleName();
+    }
+
+    private static final class Scalar extends DistanceKernel {
+        public String getName() {
+            return "scalar";
+        }
+    }
+}
@@ -1,3 +1,4 @@
+import javax.management.JMException;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
@@ -7,6 +8,10 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.net.URLEncoder;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 public class DrawFrame extends JFrame {
 
@@ -30,6 +35,19 @@ public class DrawFrame extends JFrame {
     private Processor p;
     private int kanjiStart;
 
+    // Recognition runs on this thread rather than the event dispatch thread, and so do later pages of the results.
+    // Every stroke starts a new request; 'generation' tells a finished request (or page) whether it's still the
+    // latest, and the request before it is cancelled (if it hasn't started yet) or has its result thrown away.
+    private final ExecutorService recognizer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "kanji-recognizer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private Future<?> pendingRecognition;
+    private long generation;
+
     public DrawFrame() {
         initializeComponents();
     }
@@ -65,6 +83,7 @@ public class DrawFrame extends JFrame {
 
         clearButton.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
+                cancelRecognition();
                 canvas.clear();
                 submitButton.setEnabled(false);
                 leftArrow.setEnabled(false);
@@ -80,26 +99,19 @@ public class DrawFrame extends JFrame {
 
         rightArrow.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
-                kanjiStart += 10;
-                displayKanji();
-                leftArrow.setEnabled(true);
+                showPage(kanjiStart + 10);
             }
         });
 
         leftArrow.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
-                kanjiStart -= 10;
-                displayKanji();
-                rightArrow.setEnabled(true);
+                showPage(kanjiStart - 10);
             }
         });
 
         submitButton.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
-                p = new Processor(canvas.getImage());
-                kanjiStart = 0;
-                displayKanji();
-                rightArrow.setEnabled(true);
+                recognize();
             }
         });
 
@@ -137,38 +149,94 @@ public class DrawFrame extends JFrame {
             BufferedReader br = new BufferedReader
                 (new FileReader("/home/joey/IdeaProjects/Kanji Detection/resources/kanjilist.txt"));
             kanjiStr = br.readLine();
+            ReferenceIndex.getShared();
         } catch(IOException e ) { e.printStackTrace(); }
     }
 
-    public void displayKanji() {
-        int match;
-        int maxResult;
+    // Start recognizing what's on the canvas now, in the background, in place of any request that's still pending.
+    // The results are shown once they're ready, unless another stroke has been drawn by then.
+    private void recognize() {
+        final BitImage ink = canvas.getInk().copy();
+        final long requestGeneration = cancelRecognition();
+
+        pendingRecognition = recognizer.submit(new Runnable() {
+            public void run() {
+                Processor processor = new Processor(ink);
+                if (fetchPage(processor, true, 0, requestGeneration))
+                    RecognitionMetrics.stop(RecognitionMetrics.Stage.QUERY, processor.startNanos);
+            }
+        });
+    }
+
+    // Show the results from 'start' on for the current kanji. The page is fetched on the recognizer thread as well,
+    // since one that hasn't been shown before means another pass over the reference data.
+    private void showPage(final int start) {
+        final Processor processor = p;
+        final long requestGeneration = generation;
+
+        recognizer.submit(new Runnable() {
+            public void run() {
+                fetchPage(processor, false, start, requestGeneration);
+            }
+        });
+    }
+
+    // On the recognizer thread: get the page starting at 'start' and hand it to the event dispatch thread, which shows
+    // it if nothing newer has been asked for since. A page of the kanji already on show is also dropped if another
+    // kanji's results have replaced them in the meantime.
+    private boolean fetchPage(final Processor processor, final boolean newKanji, final int start,
+                              final long requestGeneration) {
+        final Match[] matches;
+        final boolean hasNextPage;
+
+        try {
+            MatchCursor cursor = processor.getMatchCursor(10);
+            matches = cursor.getPage(start / 10);
+            hasNextPage = cursor.hasPage(start / 10 + 1);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                if (requestGeneration != generation || (!newKanji && processor != p))
+                    return;
+                p = processor;
+                kanjiStart = start;
+                displayKanji(matches, hasNextPage);
+            }
+        });
+        return true;
+    }
+
+    // Make any pending request stale, and return the generation of the next one
+    private long cancelRecognition() {
+        if (pendingRecognition != null)
+            pendingRecognition.cancel(false);
+        return ++generation;
+    }
 
-        // When "Find a match" is pressed, we need to generate the new kanji list. If one of the arrows is pressed,
-        // we just need to retrieve the list that we've already generated (and this list will have size 0 if it
-        // hasn't already been generated).
-        ArrayList<Integer> bestMatches = p.getBestMatches().size() == 0 ? p.discoverBestMatches() : p.getBestMatches();
+    // Fill the buttons with a page of matches starting at 'kanjiStart'
+    public void displayKanji(Match[] matches, boolean hasNextPage) {
+        int maxResult;
 
         // Fill the buttons with the ten next best kanji, or leave some empty if there aren't ten more available
-        for (int i = kanjiStart; i < kanjiStart + 10; i++) {
-            if (i < bestMatches.size()) {
-                match = bestMatches.get(i);
-                kanjiButtons.get(i - kanjiStart).setEnabled(true);
-                kanjiButtons.get(i - kanjiStart).setText(kanjiStr.charAt(match - 1) + "");
+        for (int i = 0; i < 10; i++) {
+            if (i < matches.length) {
+                kanjiButtons.get(i).setEnabled(true);
+                kanjiButtons.get(i).setText(kanjiStr.charAt(matches[i].getKanjiId() - 1) + "");
             }
             else {
-                kanjiButtons.get(i - kanjiStart).setEnabled(false);
-                kanjiButtons.get(i - kanjiStart).setText(" ");
+                kanjiButtons.get(i).setEnabled(false);
+                kanjiButtons.get(i).setText(" ");
             }
         }
 
         // Keep the user from going beyond the boundaries of the kanji list.
-        if (kanjiStart == 0)
-            leftArrow.setEnabled(false);
-        if (kanjiStart >= bestMatches.size() - 10)
-            rightArrow.setEnabled(false);
+        leftArrow.setEnabled(kanjiStart > 0);
+        rightArrow.setEnabled(hasNextPage);
 
-        maxResult = Math.min(kanjiStart + 10, bestMatches.size());
+        maxResult = kanjiStart + matches.length;
         resultLabel.setText("Showing best results " + (kanjiStart + 1) + "-" + maxResult + ":");
     }
 
@@ -177,7 +245,9 @@ public class DrawFrame extends JFrame {
         private final int IMAGE_WIDTH = 250;
         private final int IMAGE_OFFSET_X = (FRAME_WIDTH - IMAGE_WIDTH) / 2;
         private final int IMAGE_OFFSET_Y = 40;
+        private final int STROKE_WIDTH = 3;
         private BufferedImage image;
+        private BitImage ink; // The binarized image, updated stroke by stroke
         private Graphics2D g2;
         private int startX, startY, endX, endY;
 
@@ -192,16 +262,26 @@ public class DrawFrame extends JFrame {
                 public void mouseDragged(MouseEvent e) {
                     endX = e.getX();
                     endY = e.getY();
-                    g2.setStroke(new BasicStroke(3));
+                    g2.setStroke(new BasicStroke(STROKE_WIDTH));
 
                     // 'IMAGE_OFFSET's account for the image not being located at the
                     // top-left of the screen.
                     g2.drawLine(startX - IMAGE_OFFSET_X, startY - IMAGE_OFFSET_Y,
                         endX - IMAGE_OFFSET_X, endY - IMAGE_OFFSET_Y);
+
+                    // Only the pixels around the new segment can have changed (antialiasing reaches a pixel past
+                    // the stroke), so only those are binarized again
+                    int margin = STROKE_WIDTH / 2 + 2;
+                    ink.update(image, Processor.INK_THRESHOLD,
+                            Math.min(startY, endY) - IMAGE_OFFSET_Y - margin,
+                            Math.min(startX, endX) - IMAGE_OFFSET_X - margin,
+                            Math.max(startY, endY) - IMAGE_OFFSET_Y + margin,
+                            Math.max(startX, endX) - IMAGE_OFFSET_X + margin);
                     repaint();
                     startX = endX;
                     startY = endY;
                     submitButton.setEnabled(true);
+                    recognize();
                 }
             });
         }
@@ -212,6 +292,7 @@ public class DrawFrame extends JFrame {
                 image = new BufferedImage(IMAGE_WIDTH, IMAGE_WIDTH, BufferedImage.TYPE_INT_RGB);
                 g2 = (Graphics2D) image.getGraphics();
                 g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+                ink = new BitImage(IMAGE_WIDTH, IMAGE_WIDTH);
                 clear();
             }
             g.drawImage(image, IMAGE_OFFSET_X, IMAGE_OFFSET_Y, null);
@@ -221,14 +302,25 @@ public class DrawFrame extends JFrame {
             g2.setPaint(Color.white);
             g2.fillRect(0, 0, getSize().width, getSize().height);
             g2.setPaint(Color.black);
+            ink.clear();
             repaint();
         }
         public BufferedImage getImage() {
             return image;
         }
+
+        public BitImage getInk() {
+            return ink;
+        }
     }
 
     public static void main(String[] args) {
+        // Metrics stay disabled until they're switched on through JMX
+        try {
+            RecognitionMetrics.registerMBean();
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
         DrawFrame df = new DrawFrame();
         df.setSize(FRAME_WIDTH, FRAME_HEIGHT);
         df.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
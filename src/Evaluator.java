@@ -0,0 +1,407 @@
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Measures how well, and how fast, the recognizer does on a set of labeled glyph images: top-1 and top-10 accuracy,
+// the kanji most often mistaken for one another, and per-image latency percentiles. An image's label is the number
+// its file name starts with, the same 1-based kanji number that Preprocessor's 'i.gif' images use ("12.png" and
+// "12_drawn.png" are both the 12th kanji of kanjilist.txt).
+//
+// Every image is read and its attributes extracted once, in parallel, and those attributes are then matched under
+// any number of weightings (see WeightedIndex), so trying out different Processor.WEIGHTS doesn't extract anything
+// again. A weighting's report is the accuracy and the matching latency under it; the extraction latency is the same
+// for all of them.
+//
+// --reference runs the reference images themselves (Preprocessor's input) as the test set. There's one image per
+// kanji, so this can't be a true leave-one-out; instead each image is expected to find its own row first, and the
+// confusions are the kanji whose attributes are too close to tell apart. That's mostly useful with --normalize, or
+// after changing the extraction, to see whether 'data.txt' still agrees with what the images give now.
+//
+// Usage: Evaluator [--threads n] [--normalize] [--weights w0,w1,...] [--sweep f=v1,v2,...]... [--confusions n]
+//                  (--reference | directory | image | @list)...
+// where --weights replaces Processor.WEIGHTS as the baseline and each --sweep evaluates the baseline again with
+// weight f (counting from 0, in Processor.WEIGHTS order) set to each of the values in turn.
+public class Evaluator {
+
+    static final int TOP_K = 10;
+
+    private final ReferenceIndex index;
+    private final int numThreads;
+    private boolean normalize;
+
+    public Evaluator(ReferenceIndex index, int numThreads) {
+        if (numThreads <= 0)
+            throw new IllegalArgumentException("numThreads must be positive");
+        this.index = index;
+        this.numThreads = numThreads;
+    }
+
+    // Whether images go through a Normalizer before their features are extracted
+    public void setNormalize(boolean normalize) {
+        this.normalize = normalize;
+    }
+
+    // A labeled image and its attributes
+    public static final class Sample {
+        final File image;
+        final int label;
+        final double[] attributes;
+        final long extractNanos; // Binarizing and extracting, not counting reading the file
+
+        Sample(File image, int label, double[] attributes, long extractNanos) {
+            this.image = image;
+            this.label = label;
+            this.attributes = attributes;
+            this.extractNanos = extractNanos;
+        }
+    }
+
+    // Read and extract every image, in parallel. Images that can't be read are reported and left out.
+    public Sample[] extract(List<File> images) throws InterruptedException {
+        ArrayList<Callable<Sample>> tasks = new ArrayList<Callable<Sample>>();
+
+        for (final File image : images) {
+            tasks.add(new Callable<Sample>() {
+                public Sample call() throws IOException {
+                    BufferedImage img = ImageIO.read(image);
+                    if (img == null)
+                        throw new IOException(image + ": unsupported image format");
+                    try {
+                        long start = System.nanoTime();
+                        double[] attributes = ExtractionWorkspace.forCurrentThread().extract(img, normalize,
+                                new double[Processor.WEIGHTS.length]);
+                        return new Sample(image, label(image), attributes, System.nanoTime() - start);
+                    } catch (RuntimeException e) {
+                        throw new IOException(image + ": " + e, e);
+                    }
+                }
+            });
+        }
+
+        ArrayList<Sample> samples = new ArrayList<Sample>();
+        for (Future<Sample> result : runAll(tasks)) {
+            try {
+                samples.add(result.get());
+            } catch (ExecutionException e) {
+                System.err.println("Skipping " + e.getCause().getMessage());
+            }
+        }
+        return samples.toArray(new Sample[samples.size()]);
+    }
+
+    // Match every sample under the given weights, in parallel
+    public Report evaluate(final Sample[] samples, double[] weights) throws InterruptedException {
+        final WeightedIndex weighted = new WeightedIndex(index, weights);
+        final Report report = new Report(weights);
+        ArrayList<Callable<Match[]>> tasks = new ArrayList<Callable<Match[]>>();
+
+        for (final Sample sample : samples) {
+            tasks.add(new Callable<Match[]>() {
+                public Match[] call() {
+                    long start = System.nanoTime();
+                    Match[] matches = weighted.findBestMatchesSequential(sample.attributes, TOP_K);
+                    long matchNanos = System.nanoTime() - start;
+                    report.matchLatency.record(matchNanos);
+                    report.totalLatency.record(sample.extractNanos + matchNanos);
+                    return matches;
+                }
+            });
+        }
+
+        List<Future<Match[]>> results = runAll(tasks);
+        for (int i = 0; i < samples.length; i++) {
+            Match[] matches;
+            try {
+                matches = results.get(i).get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+            report.add(samples[i].label, matches);
+        }
+        return report;
+    }
+
+    private <T> List<Future<T>> runAll(List<Callable<T>> tasks) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        try {
+            return pool.invokeAll(tasks);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // The kanji number a file name starts with, or 0 if it doesn't start with one
+    static int label(File image) {
+        String name = image.getName();
+        int end = 0;
+        while (end < name.length() && end < 9 && Character.isDigit(name.charAt(end)))
+            end++;
+        return end == 0 ? 0 : Integer.parseInt(name.substring(0, end));
+    }
+
+    // The outcome of one weighting
+    public static final class Report {
+        final double[] weights;
+        final LatencyHistogram matchLatency = new LatencyHistogram();
+        final LatencyHistogram totalLatency = new LatencyHistogram(); // Extraction plus matching, per image
+        final HashMap<Long, Integer> confusions = new HashMap<Long, Integer>(); // (label << 32 | top-1 or 0) -> count
+        int numSamples, numTop1, numTop10;
+
+        Report(double[] weights) {
+            this.weights = weights.clone();
+        }
+
+        // A match at a NaN distance (the query had no ink, say) isn't a match at all
+        void add(int label, Match[] matches) {
+            numSamples++;
+            for (int rank = 0; rank < matches.length && !Double.isNaN(matches[rank].getDistance()); rank++) {
+                if (matches[rank].getKanjiId() == label) {
+                    if (rank == 0)
+                        numTop1++;
+                    numTop10++;
+                    break;
+                }
+            }
+            int top = matches.length > 0 && !Double.isNaN(matches[0].getDistance()) ? matches[0].getKanjiId() : 0;
+            if (top != label) {
+                Long pair = ((long)label << 32) | top;
+                Integer count = confusions.get(pair);
+                confusions.put(pair, count == null ? 1 : count + 1);
+            }
+        }
+
+        public double getTop1Accuracy() {
+            return numSamples == 0 ? 0 : (double)numTop1 / numSamples;
+        }
+
+        public double getTop10Accuracy() {
+            return numSamples == 0 ? 0 : (double)numTop10 / numSamples;
+        }
+
+        // The n most frequent (label, top-1 match) pairs among the misses, most frequent first
+        public List<Map.Entry<Long, Integer>> getTopConfusions(int n) {
+            ArrayList<Map.Entry<Long, Integer>> pairs = new ArrayList<Map.Entry<Long, Integer>>(confusions.entrySet());
+            Collections.sort(pairs, new Comparator<Map.Entry<Long, Integer>>() {
+                public int compare(Map.Entry<Long, Integer> a, Map.Entry<Long, Integer> b) {
+                    int byCount = b.getValue().compareTo(a.getValue());
+                    return byCount != 0 ? byCount : a.getKey().compareTo(b.getKey());
+                }
+            });
+            return pairs.subList(0, Math.min(n, pairs.size()));
+        }
+    }
+
+    private static String percentiles(LatencyHistogram latency) {
+        return String.format("p50 %s, p90 %s, p99 %s, max %s", micros(latency.getPercentileNanos(50)),
+                micros(latency.getPercentileNanos(90)), micros(latency.getPercentileNanos(99)),
+                micros(latency.getMaxNanos()));
+    }
+
+    private static String micros(long nanos) {
+        return String.format("%.1f us", nanos / 1000.0);
+    }
+
+    // How a weighting differs from the baseline, for the sweep table
+    private static String describe(double[] weights, double[] baseline) {
+        StringBuilder changes = new StringBuilder();
+        for (int i = 0; i < weights.length; i++) {
+            if (weights[i] != baseline[i])
+                changes.append(changes.length() == 0 ? "" : " ").append("w").append(i).append("=").append(weights[i]);
+        }
+        return changes.length() == 0 ? "baseline" : changes.toString();
+    }
+
+    private static String kanji(String kanjiStr, int id) {
+        if (id == 0)
+            return "(no match)";
+        return id >= 1 && id <= kanjiStr.length() ? kanjiStr.charAt(id - 1) + " (" + id + ")" : "#" + id;
+    }
+
+    private static double[] parseWeights(String s) {
+        String[] parts = s.split(",");
+        if (parts.length != Processor.WEIGHTS.length)
+            throw new IllegalArgumentException("Expected " + Processor.WEIGHTS.length + " weights, got " + s);
+        double[] weights = new double[parts.length];
+        for (int i = 0; i < parts.length; i++)
+            weights[i] = Double.parseDouble(parts[i].trim());
+        return weights;
+    }
+
+    // The weightings a --sweep f=v1,v2,... evaluates: the baseline with weight f set to each of the values in turn
+    private static ArrayList<double[]> parseSweep(String sweep, double[] baseline) {
+        ArrayList<double[]> weightings = new ArrayList<double[]>();
+        int equals = sweep.indexOf('=');
+
+        try {
+            int feature = equals < 0 ? -1 : Integer.parseInt(sweep.substring(0, equals).trim());
+            if (feature >= 0 && feature < baseline.length) {
+                for (String value : sweep.substring(equals + 1).split(",")) {
+                    double[] weights = baseline.clone();
+                    weights[feature] = Double.parseDouble(value.trim());
+                    weightings.add(weights);
+                }
+                return weightings;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Bad --sweep " + sweep + ": expected f=v1,v2,... with f from 0 to "
+                + (baseline.length - 1));
+    }
+
+    // Expand the command line's inputs into image files
+    private static void addImages(String arg, ArrayList<File> images) throws IOException {
+        if (arg.startsWith("@")) {
+            BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(arg.substring(1)),
+                    "utf-8"));
+            try {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    if (line.trim().length() > 0)
+                        images.add(new File(line.trim()));
+                }
+            } finally {
+                br.close();
+            }
+        } else if (new File(arg).isDirectory()) {
+            File[] files = new File(arg).listFiles();
+            Arrays.sort(files);
+            for (File file : files) {
+                if (file.isFile())
+                    images.add(file);
+            }
+        } else {
+            images.add(new File(arg));
+        }
+    }
+
+    public static void main(String[] args) {
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        int numConfusions = 20;
+        boolean normalize = false;
+        double[] baseline = Processor.WEIGHTS.clone();
+        ArrayList<String> sweeps = new ArrayList<String>();
+        ArrayList<String> inputs = new ArrayList<String>();
+
+        // A bad value for any option is a usage error, like a missing input. The sweeps are checked here too, once the
+        // baseline is known, so that a bad one is reported before any image is extracted.
+        String error = null;
+        ArrayList<double[]> swept = new ArrayList<double[]>();
+        int i = 0;
+        try {
+            for (; i < args.length; i++) {
+                if (args[i].equals("--threads") && i + 1 < args.length)
+                    numThreads = Integer.parseInt(args[++i]);
+                else if (args[i].equals("--normalize"))
+                    normalize = true;
+                else if (args[i].equals("--weights") && i + 1 < args.length)
+                    baseline = parseWeights(args[++i]);
+                else if (args[i].equals("--sweep") && i + 1 < args.length)
+                    sweeps.add(args[++i]);
+                else if (args[i].equals("--confusions") && i + 1 < args.length)
+                    numConfusions = Integer.parseInt(args[++i]);
+                else if (args[i].equals("--reference"))
+                    inputs.add(Preprocessor.INPUT_PATH);
+                else
+                    inputs.add(args[i]);
+            }
+            if (numThreads < 1 || numConfusions < 0)
+                error = "--threads must be at least 1 and --confusions can't be negative";
+        } catch (IllegalArgumentException e) { // From parseInt() or parseWeights(), after 'i' moved on to the value
+            error = "Bad value for " + args[i - 1] + ": " + args[i];
+        }
+        try {
+            for (String sweep : sweeps)
+                swept.addAll(parseSweep(sweep, baseline));
+        } catch (IllegalArgumentException e) {
+            if (error == null)
+                error = e.getMessage();
+        }
+        if (error != null || inputs.isEmpty()) {
+            if (error != null)
+                System.err.println(error);
+            System.err.println("Usage: Evaluator [--threads n] [--normalize] [--weights w0,w1,...] "
+                    + "[--sweep f=v1,v2,...]... [--confusions n] (--reference | directory | image | @list)...");
+            System.exit(2);
+        }
+
+        try {
+            BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(
+                    BatchRecognizer.KANJI_LIST_PATH), "utf-8"));
+            String kanjiStr = br.readLine();
+            br.close();
+            PrintStream out = new PrintStream(System.out, true, "utf-8");
+
+            ArrayList<File> images = new ArrayList<File>();
+            for (String input : inputs)
+                addImages(input, images);
+            ArrayList<File> labeled = new ArrayList<File>();
+            for (File image : images) {
+                if (label(image) > 0)
+                    labeled.add(image);
+                else
+                    System.err.println("Skipping " + image + ": its name doesn't start with a kanji number");
+            }
+
+            Evaluator evaluator = new Evaluator(ReferenceIndex.getShared(), numThreads);
+            evaluator.setNormalize(normalize);
+            long start = System.nanoTime();
+            Sample[] samples = evaluator.extract(labeled);
+            LatencyHistogram extractLatency = new LatencyHistogram();
+            for (Sample sample : samples)
+                extractLatency.record(sample.extractNanos);
+            out.println(samples.length + " images extracted in " + (System.nanoTime() - start) / 1000000
+                    + " ms on " + numThreads + " threads");
+            out.println("extraction: " + percentiles(extractLatency));
+
+            // The baseline in full, then one line per swept weighting. The baseline is matched twice and the first
+            // pass thrown away, so that JIT warm-up doesn't count against it and latencies compare fairly.
+            evaluator.evaluate(samples, baseline);
+            Report report = evaluator.evaluate(samples, baseline);
+            out.println(String.format("top-1 %.2f%%, top-%d %.2f%%", 100 * report.getTop1Accuracy(), TOP_K,
+                    100 * report.getTop10Accuracy()));
+            out.println("matching:   " + percentiles(report.matchLatency));
+            out.println("per image:  " + percentiles(report.totalLatency));
+            List<Map.Entry<Long, Integer>> confusions = report.getTopConfusions(numConfusions);
+            if (!confusions.isEmpty())
+                out.println("most frequent confusions (expected -> top match):");
+            for (Map.Entry<Long, Integer> pair : confusions) {
+                out.println("  " + kanji(kanjiStr, (int)(pair.getKey() >>> 32)) + " -> "
+                        + kanji(kanjiStr, (int)(long)pair.getKey()) + ": " + pair.getValue());
+            }
+
+            if (!swept.isEmpty())
+                out.println(String.format("%-24s %8s %8s %12s %12s", "weights", "top-1", "top-" + TOP_K,
+                        "match p50", "match p99"));
+            for (double[] weights : swept) {
+                Report sweptReport = evaluator.evaluate(samples, weights);
+                out.println(String.format("%-24s %7.2f%% %7.2f%% %12s %12s", describe(weights, baseline),
+                        100 * sweptReport.getTop1Accuracy(), 100 * sweptReport.getTop10Accuracy(),
+                        micros(sweptReport.matchLatency.getPercentileNanos(50)),
+                        micros(sweptReport.matchLatency.getPercentileNanos(99))));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
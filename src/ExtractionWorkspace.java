@@ -0,0 +1,92 @@
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ArrayBlockingQueue;
+
+// Everything it takes to get from an image to its attributes, kept from one image to the next: the binarized image,
+// the normalized image, the summed-area tables, the component labeler's runs and the BFS queue all belong to one
+// Processor that's load()ed with each image in turn. Once the buffers have grown to fit the images coming through
+// (which takes one image when they're all the same size), extracting allocates nothing, and the attributes go into
+// an array the caller supplies. binarize() can also be called on its own, so that a caller can look the image up
+// (see RecognitionCache) before paying for the rest.
+//
+// A workspace must not be used by two threads at once. forCurrentThread() hands each thread its own, which suits a
+// fixed set of threads (a fork-join pool, say); where every task gets a new thread, as with RecognitionServer's
+// virtual threads, a thread-local workspace would be built for each task and thrown away, so they're checked out of
+// a Pool instead. The Processor is only valid until the next call, so anything that keeps one (DrawFrame) still
+// creates its own.
+public final class ExtractionWorkspace {
+
+    private final Processor processor = new Processor();
+    private final Normalizer normalizer = new Normalizer();
+    private final BitImage normalized = new BitImage(normalizer.getSize(), normalizer.getSize());
+    private BitImage image = new BitImage(0, 0);
+    private int[] row = new int[0];
+    private int[] palette = new int[0];
+    private BitImage binarized; // The image from the last binarize(), until it's extracted
+    private long binarizeStart;
+
+    private static final ThreadLocal<ExtractionWorkspace> PER_THREAD = new ThreadLocal<ExtractionWorkspace>() {
+        protected ExtractionWorkspace initialValue() {
+            return new ExtractionWorkspace();
+        }
+    };
+
+    public static ExtractionWorkspace forCurrentThread() {
+        return PER_THREAD.get();
+    }
+
+    // Workspaces kept for reuse by any thread. The pool doesn't limit how many are checked out at once; it keeps at
+    // most 'size' of them when they're released, so callers that bound their own concurrency to 'size' (as
+    // RecognitionServer does with its in-flight permits) never build more than that many.
+    public static final class Pool {
+        private final ArrayBlockingQueue<ExtractionWorkspace> idle;
+
+        public Pool(int size) {
+            idle = new ArrayBlockingQueue<ExtractionWorkspace>(size);
+        }
+
+        // An idle workspace, or a new one if there are none. Hand it back with release() when done with it.
+        public ExtractionWorkspace take() {
+            ExtractionWorkspace workspace = idle.poll();
+            return workspace != null ? workspace : new ExtractionWorkspace();
+        }
+
+        public void release(ExtractionWorkspace workspace) {
+            idle.offer(workspace); // Dropped if the pool is full
+        }
+    }
+
+    // The attributes of 'img' (normalized first, if asked to) into 'attributes', which must hold WEIGHTS.length of
+    // them and is returned
+    public double[] extract(BufferedImage img, boolean normalize, double[] attributes) {
+        return extract(binarize(img, normalize), false, attributes);
+    }
+
+    // 'img' binarized (and normalized, if asked to) into this workspace's own image, which is only valid until the
+    // next call. Passing it to extract(BitImage, false, ...) gives the same attributes as extract(img, normalize, ...),
+    // and the metrics time its extraction from when it was binarized here, as they would have.
+    public BitImage binarize(BufferedImage img, boolean normalize) {
+        binarizeStart = RecognitionMetrics.start();
+        if (normalize) {
+            binarized = normalizer.normalize(img, normalized);
+        } else {
+            if (image.getWidth() != img.getWidth() || image.getHeight() != img.getHeight())
+                image = new BitImage(img.getWidth(), img.getHeight());
+            if (row.length < img.getWidth())
+                row = new int[img.getWidth()];
+            if (palette.length < BitImage.paletteSize(img))
+                palette = new int[BitImage.paletteSize(img)];
+            image.binarize(img, Processor.INK_THRESHOLD, row, palette);
+            binarized = image;
+        }
+        return binarized;
+    }
+
+    // The same for an image that's already binarized. Without normalizing, 'image' is used as it is.
+    public double[] extract(BitImage image, boolean normalize, double[] attributes) {
+        long start = !normalize && image == binarized ? binarizeStart : RecognitionMetrics.start();
+
+        binarized = null;
+        processor.load(normalize ? normalizer.normalize(image, normalized) : image, start);
+        return processor.getAttributes(attributes);
+    }
+}
@@ -0,0 +1,144 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+// Reads and writes reference attributes in a compact binary format, as an alternative to the text of 'data.txt'.
+// Loading one maps the file and checks its header, with no tokenizing, parsing or copying: the payload is laid out
+// the way ReferenceIndex keeps its values, so the index reads them straight from the mapping, and the pages are
+// shared with every other process that has the same file mapped.
+//
+// All values are little-endian. The file is a 32 byte header followed by the attributes, feature after feature:
+//
+//   0  magic, "KNJI"
+//   4  format version (2)
+//   8  number of features per row
+//  12  number of rows
+//  16  bytes per value: 8 for float64, 4 for float32
+//  20  reserved (12 bytes of 0)
+//  32  features * rows values: every row's value of feature 0, then of feature 1, ...
+//
+// The attributes are stored unweighted, so a store stays valid when Processor.WEIGHTS changes. Version 1 stored them
+// row after row and is no longer read (ReferenceIndex.loadDefault() falls back to 'data.txt' for one); running
+// Preprocessor or this class writes a new one.
+//
+// Running this class converts an existing 'data.txt': FeatureStore [data.txt [data.bin]] [--float32]
+public final class FeatureStore {
+
+    static final String BINARY_PATH = "/home/joey/IdeaProjects/Kanji Detection/resources/data.bin";
+
+    static final int MAGIC = 0x494A4E4B; // "KNJI" read as a little-endian int
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 32;
+
+    private FeatureStore() {
+    }
+
+    public static void write(ReferenceIndex index, String path, boolean singlePrecision) throws IOException {
+        int bytesPerValue = singlePrecision ? 4 : 8;
+        int numFeatures = index.getNumFeatures(), numRows = index.getNumRows();
+
+        if ((long)numRows * numFeatures * bytesPerValue > Integer.MAX_VALUE - HEADER_SIZE)
+            throw new IOException("Too many rows for a feature store: " + numRows);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + numRows * numFeatures * bytesPerValue)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(numFeatures).putInt(numRows).putInt(bytesPerValue).putInt(0);
+        buffer.putLong(0);
+        for (int i = 0; i < numFeatures; i++) {
+            for (int row = 0; row < numRows; row++) {
+                if (singlePrecision)
+                    buffer.putFloat((float)index.get(row, i));
+                else
+                    buffer.putDouble(index.get(row, i));
+            }
+        }
+        buffer.flip();
+
+        // Write next to the destination and move into place, so a reader never maps a half-written file
+        File temp = new File(path + ".tmp");
+        RandomAccessFile file = new RandomAccessFile(temp, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            channel.truncate(0);
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        } finally {
+            file.close();
+        }
+        Files.move(temp.toPath(), new File(path).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static ReferenceIndex read(String path) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+
+        try {
+            FileChannel channel = file.getChannel();
+            if (channel.size() < HEADER_SIZE)
+                throw new IOException(path + ": too short to be a feature store");
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException(path + ": too large to map");
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            if (buffer.getInt(0) != MAGIC)
+                throw new IOException(path + ": not a feature store");
+            if (buffer.getInt(4) != VERSION)
+                throw new IOException(path + ": unsupported feature store version " + buffer.getInt(4));
+            int numFeatures = buffer.getInt(8);
+            int numRows = buffer.getInt(12);
+            int bytesPerValue = buffer.getInt(16);
+            if (numFeatures < 0 || numFeatures > Processor.WEIGHTS.length || numRows < 0
+                    || (bytesPerValue != 4 && bytesPerValue != 8))
+                throw new IOException(path + ": corrupt header");
+            if (channel.size() != HEADER_SIZE + (long)numRows * numFeatures * bytesPerValue)
+                throw new IOException(path + ": expected " + numRows + " rows of " + numFeatures + " features");
+
+            // The mapping stays valid once the file is closed, and (as stores are replaced by moving a new file into
+            // place) the file under it is never rewritten
+            buffer.position(HEADER_SIZE);
+            return new ReferenceIndex(buffer.slice(), bytesPerValue == 4, numRows, numFeatures);
+        } finally {
+            file.close();
+        }
+    }
+
+    // Whether the file at 'path' starts like a feature store (as opposed to a text file like 'data.txt')
+    public static boolean isFeatureStore(String path) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+
+        try {
+            return file.length() >= 4 && Integer.reverseBytes(file.readInt()) == MAGIC;
+        } finally {
+            file.close();
+        }
+    }
+
+    public static void main(String[] args) {
+        String input = ReferenceIndex.DATA_PATH, output = BINARY_PATH;
+        boolean singlePrecision = false;
+        int numPaths = 0;
+
+        for (String arg : args) {
+            if (arg.equals("--float32"))
+                singlePrecision = true;
+            else if (numPaths++ == 0)
+                input = arg;
+            else
+                output = arg;
+        }
+        try {
+            ReferenceIndex index = ReferenceIndex.load(input);
+            write(index, output, singlePrecision);
+            System.out.println("Wrote " + index.getNumRows() + " rows of " + index.getNumFeatures()
+                    + " features to " + output);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
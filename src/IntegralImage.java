@@ -0,0 +1,145 @@
+import java.util.Arrays;
+
+// Summed-area tables over a BitImage: the number of set pixels, and the sums of their x and y coordinates, in every
+// rectangle anchored at the top-left corner. Once built (a single pass over the image), the pixel count and centre of
+// mass of any rectangle can be looked up in constant time.
+//
+// The tables only need to cover the part of the image that has set pixels in it, so they can be built over a kanji's
+// bounding box rather than the whole image: lookups anywhere in the image still give the right answer, as there's
+// nothing outside the box to count. Coordinate sums are kept relative to the box's corner, in ints whenever no sum
+// can overflow one (boxes up to about 1290 pixels square) and in longs beyond that.
+public final class IntegralImage {
+
+    private int xstart, ystart, width, height; // The rectangle the tables cover
+    private int stride;
+    private int[] counts = new int[0];
+    private boolean longSums;
+    private int[] intSumsX = new int[0], intSumsY = new int[0];
+    private long[] longSumsX = new long[0], longSumsY = new long[0];
+
+    // Entry (y+1, x+1) of each table covers the pixels in [ystart, ystart + y] x [xstart, xstart + x]; row and
+    // column 0 are all zeros.
+    public IntegralImage(BitImage image) {
+        rebuild(image);
+    }
+
+    // Tables over [ystart, yend] x [xstart, xend] only, which must hold every set pixel of the image
+    public IntegralImage(BitImage image, int ystart, int xstart, int yend, int xend) {
+        rebuild(image, ystart, xstart, yend, xend);
+    }
+
+    public void rebuild(BitImage image) {
+        rebuild(image, 0, 0, image.getHeight() - 1, image.getWidth() - 1);
+    }
+
+    // Build the tables for another image (or box) in place, only allocating if it's larger than any seen before.
+    // Every entry for the new size is written, so nothing has to be cleared first.
+    public void rebuild(BitImage image, int ystart, int xstart, int yend, int xend) {
+        ystart = Math.max(ystart, 0);
+        xstart = Math.max(xstart, 0);
+        yend = Math.min(yend, image.getHeight() - 1);
+        xend = Math.min(xend, image.getWidth() - 1);
+        this.ystart = ystart;
+        this.xstart = xstart;
+        width = Math.max(xend - xstart + 1, 0);
+        height = Math.max(yend - ystart + 1, 0);
+        if (width == 0 || height == 0)
+            width = height = 0;
+        stride = width + 1;
+
+        // A sum covers at most width * height pixels, none more than max(width, height) - 1 from the corner
+        int size = stride * (height + 1);
+        longSums = (long)width * height * Math.max(width, height) > Integer.MAX_VALUE;
+        if (counts.length < size)
+            counts = new int[size];
+        Arrays.fill(counts, 0, stride, 0);
+        if (longSums) {
+            if (longSumsX.length < size) {
+                longSumsX = new long[size];
+                longSumsY = new long[size];
+            }
+            Arrays.fill(longSumsX, 0, stride, 0);
+            Arrays.fill(longSumsY, 0, stride, 0);
+        } else {
+            if (intSumsX.length < size) {
+                intSumsX = new int[size];
+                intSumsY = new int[size];
+            }
+            Arrays.fill(intSumsX, 0, stride, 0);
+            Arrays.fill(intSumsY, 0, stride, 0);
+        }
+
+        for (int y = 0; y < height; y++) {
+            int rowCount = 0;
+            int rowSumX = 0;
+            int above = y * stride, current = (y + 1) * stride;
+
+            counts[current] = 0;
+            if (longSums) {
+                longSumsX[current] = 0;
+                longSumsY[current] = 0;
+                for (int x = 0; x < width; x++) {
+                    if (image.get(ystart + y, xstart + x)) {
+                        rowCount++;
+                        rowSumX += x;
+                    }
+                    counts[current + x + 1] = counts[above + x + 1] + rowCount;
+                    longSumsX[current + x + 1] = longSumsX[above + x + 1] + rowSumX;
+                    longSumsY[current + x + 1] = longSumsY[above + x + 1] + (long)rowCount * y;
+                }
+            } else {
+                intSumsX[current] = 0;
+                intSumsY[current] = 0;
+                for (int x = 0; x < width; x++) {
+                    if (image.get(ystart + y, xstart + x)) {
+                        rowCount++;
+                        rowSumX += x;
+                    }
+                    counts[current + x + 1] = counts[above + x + 1] + rowCount;
+                    intSumsX[current + x + 1] = intSumsX[above + x + 1] + rowSumX;
+                    intSumsY[current + x + 1] = intSumsY[above + x + 1] + rowCount * y;
+                }
+            }
+        }
+    }
+
+    // Number of set pixels in [ystart, yend] x [xstart, xend]. Bounds may lie anywhere.
+    public int count(int ystart, int xstart, int yend, int xend) {
+        ystart = Math.max(ystart - this.ystart, 0);
+        xstart = Math.max(xstart - this.xstart, 0);
+        yend = Math.min(yend - this.ystart, height - 1);
+        xend = Math.min(xend - this.xstart, width - 1);
+        if (ystart > yend || xstart > xend)
+            return 0;
+        return counts[(yend + 1) * stride + xend + 1] - counts[ystart * stride + xend + 1]
+                - counts[(yend + 1) * stride + xstart] + counts[ystart * stride + xstart];
+    }
+
+    // Sum of the x-coordinates of the set pixels in [ystart, yend] x [xstart, xend]
+    public long sumX(int ystart, int xstart, int yend, int xend) {
+        return sum(true, ystart, xstart, yend, xend) + (long)count(ystart, xstart, yend, xend) * this.xstart;
+    }
+
+    // Sum of the y-coordinates of the set pixels in [ystart, yend] x [xstart, xend]
+    public long sumY(int ystart, int xstart, int yend, int xend) {
+        return sum(false, ystart, xstart, yend, xend) + (long)count(ystart, xstart, yend, xend) * this.ystart;
+    }
+
+    // The sum of the coordinates relative to the tables' corner
+    private long sum(boolean ofX, int ystart, int xstart, int yend, int xend) {
+        ystart = Math.max(ystart - this.ystart, 0);
+        xstart = Math.max(xstart - this.xstart, 0);
+        yend = Math.min(yend - this.ystart, height - 1);
+        xend = Math.min(xend - this.xstart, width - 1);
+        if (ystart > yend || xstart > xend)
+            return 0;
+        int a = (yend + 1) * stride + xend + 1, b = ystart * stride + xend + 1;
+        int c = (yend + 1) * stride + xstart, d = ystart * stride + xstart;
+        if (longSums) {
+            long[] table = ofX ? longSumsX : longSumsY;
+            return table[a] - table[b] - table[c] + table[d];
+        }
+        int[] table = ofX ? intSumsX : intSumsY;
+        return (long)table[a] - table[b] - table[c] + table[d];
+    }
+}
@@ -0,0 +1,81 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// A thread-safe histogram of durations in nanoseconds. Buckets are log-linear: exact below 16ns, then eight buckets
+// per power of two, so any percentile is reported to within about 12% using a fixed 4KB of counters, however many
+// values are recorded.
+public final class LatencyHistogram {
+
+    private static final int NUM_BUCKETS = 16 + 59 * 8;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        nanos = Math.max(nanos, 0);
+        buckets.incrementAndGet(bucket(nanos));
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        long currentMax;
+        while (nanos > (currentMax = max.get()) && !max.compareAndSet(currentMax, nanos));
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getTotalNanos() {
+        return total.get();
+    }
+
+    public long getMaxNanos() {
+        return max.get();
+    }
+
+    public double getMeanNanos() {
+        long n = count.get();
+        return n == 0 ? 0 : ((double)total.get())/n;
+    }
+
+    // An estimate of the given percentile (0-100): the midpoint of the bucket it falls in
+    public long getPercentileNanos(double percentile) {
+        long n = count.get();
+        if (n == 0)
+            return 0;
+
+        long rank = Math.max(1, (long)Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank)
+                return Math.min((lowerBound(i) + lowerBound(i + 1) - 1) / 2, max.get());
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < NUM_BUCKETS; i++)
+            buckets.set(i, 0);
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+    static int bucket(long nanos) {
+        if (nanos < 16)
+            return (int)nanos;
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        return 16 + (exponent - 4) * 8 + (int)((nanos >>> (exponent - 3)) & 7);
+    }
+
+    static long lowerBound(int bucket) {
+        if (bucket < 16)
+            return bucket;
+        if (bucket >= NUM_BUCKETS)
+            return Long.MAX_VALUE;
+        int exponent = (bucket - 16) / 8 + 4;
+        return (8L + (bucket - 16) % 8) << (exponent - 3);
+    }
+}
@@ -0,0 +1,34 @@
+// A single result of a query against the reference set: the ID of a kanji (its 1-based position in kanjilist.txt)
+// and its weighted distance from the query. Matches are ordered by distance, with ties going to the lower ID so that
+// the same query always produces the same ranking.
+public final class Match implements Comparable<Match> {
+
+    private final int kanjiId;
+    private final double distance;
+
+    public Match(int kanjiId, double distance) {
+        this.kanjiId = kanjiId;
+        this.distance = distance;
+    }
+
+    public int getKanjiId() {
+        return kanjiId;
+    }
+
+    public double getDistance() {
+        return distance;
+    }
+
+    public int compareTo(Match other) {
+        return compare(distance, kanjiId, other.distance, other.kanjiId);
+    }
+
+    static int compare(double distance1, int id1, double distance2, int id2) {
+        int c = Double.compare(distance1, distance2);
+        return c != 0 ? c : (id1 < id2 ? -1 : (id1 == id2 ? 0 : 1));
+    }
+
+    public String toString() {
+        return kanjiId + ":" + distance;
+    }
+}
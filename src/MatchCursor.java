@@ -0,0 +1,60 @@
+import java.util.ArrayList;
+
+// Pages through the ranking of a query without ever sorting the whole reference set. Each new page is a bounded
+// top-k scan restricted to the matches ranked after the last one already returned, so showing the first few pages
+// costs a few linear scans. Pages that have been fetched are kept so that paging backwards is free.
+public final class MatchCursor {
+
+    private final ReferenceIndex index;
+    private final double[] attributes;
+    private final int pageSize;
+    private final ArrayList<Match[]> pages;
+    private double lastSquared = Double.NEGATIVE_INFINITY; // Squared distance and ID of the last match returned
+    private int lastId;
+
+    public MatchCursor(ReferenceIndex index, double[] attributes, int pageSize) {
+        if (pageSize <= 0)
+            throw new IllegalArgumentException("Page size must be positive: " + pageSize);
+        this.index = index;
+        this.attributes = attributes;
+        this.pageSize = pageSize;
+        pages = new ArrayList<Match[]>();
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public boolean hasPage(int page) {
+        return page >= 0 && (long)page * pageSize < index.getNumRows();
+    }
+
+    // The matches ranked page*pageSize+1 to (page+1)*pageSize (fewer on the last page). Cursors can be shared
+    // between threads (see RecognitionCache), so pages are fetched one at a time.
+    public synchronized Match[] getPage(int page) {
+        if (!hasPage(page))
+            return new Match[0];
+        while (pages.size() <= page)
+            pages.add(nextPage());
+        return pages.get(page);
+    }
+
+    // The first page comes from the quantized index when there is one (see ReferenceIndex.getQuantized()), which is
+    // where a query usually stops; later pages are exact scans after the last match returned.
+    private Match[] nextPage() {
+        WeightedIndex weighted = index.getWeighted();
+        QuantizedIndex quantized = pages.isEmpty() ? index.getQuantized(pageSize) : null;
+        long start = RecognitionMetrics.start();
+
+        MatchHeap heap = quantized != null ? quantized.rerank(attributes, pageSize, index.getQuantizedCandidates())
+                : ShardedMatcher.getShared().scan(weighted, weighted.weigh(attributes), pageSize, lastSquared, lastId);
+        Match[] matches = heap.drainSorted();
+        if (matches.length > 0) {
+            lastSquared = matches[matches.length - 1].getDistance();
+            lastId = matches[matches.length - 1].getKanjiId();
+        }
+        RecognitionMetrics.stop(RecognitionMetrics.Stage.DISTANCE_SCAN, start);
+        RecognitionMetrics.count(RecognitionMetrics.Counter.REFERENCE_ROWS_COMPARED, index.getNumRows());
+        return WeightedIndex.toDistances(matches);
+    }
+}
@@ -0,0 +1,105 @@
+// Keeps the k best (kanjiId, distance) pairs seen so far in a bounded binary heap of primitives. The worst of the
+// kept matches sits at the root, so a candidate that can't beat it is rejected with a single comparison and nothing
+// is allocated until the results are asked for.
+public final class MatchHeap {
+
+    private final double[] distances;
+    private final int[] ids;
+    private int size;
+
+    public MatchHeap(int k) {
+        if (k < 0)
+            throw new IllegalArgumentException("k must not be negative: " + k);
+        distances = new double[k];
+        ids = new int[k];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return ids.length;
+    }
+
+    public boolean isFull() {
+        return size == ids.length;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    // Distance of the worst match that's kept, or infinity while the heap still has room
+    public double worstDistance() {
+        return isFull() && size > 0 ? distances[0] : Double.POSITIVE_INFINITY;
+    }
+
+    // Whether a candidate would be kept if it were offered
+    public boolean accepts(int kanjiId, double distance) {
+        if (size < ids.length)
+            return true;
+        return size > 0 && Match.compare(distance, kanjiId, distances[0], ids[0]) < 0;
+    }
+
+    // Returns true if the candidate was kept
+    public boolean offer(int kanjiId, double distance) {
+        if (size < ids.length) {
+            siftUp(size++, kanjiId, distance);
+            return true;
+        }
+        if (size == 0 || Match.compare(distance, kanjiId, distances[0], ids[0]) >= 0)
+            return false;
+        siftDown(0, kanjiId, distance);
+        return true;
+    }
+
+    public void addAll(MatchHeap other) {
+        for (int i = 0; i < other.size; i++)
+            offer(other.ids[i], other.distances[i]);
+    }
+
+    // The kept matches, best first. The heap is left empty.
+    public Match[] drainSorted() {
+        Match[] matches = new Match[size];
+
+        for (int i = size - 1; i >= 0; i--) {
+            matches[i] = new Match(ids[0], distances[0]);
+            size--;
+            if (size > 0)
+                siftDown(0, ids[size], distances[size]);
+        }
+        return matches;
+    }
+
+    private void siftUp(int pos, int kanjiId, double distance) {
+        while (pos > 0) {
+            int parent = (pos - 1) / 2;
+            if (Match.compare(distance, kanjiId, distances[parent], ids[parent]) <= 0)
+                break;
+            distances[pos] = distances[parent];
+            ids[pos] = ids[parent];
+            pos = parent;
+        }
+        distances[pos] = distance;
+        ids[pos] = kanjiId;
+    }
+
+    private void siftDown(int pos, int kanjiId, double distance) {
+        int half = size / 2;
+
+        while (pos < half) {
+            int child = 2 * pos + 1;
+            if (child + 1 < size
+                    && Match.compare(distances[child + 1], ids[child + 1], distances[child], ids[child]) > 0)
+                child++;
+            if (Match.compare(distance, kanjiId, distances[child], ids[child]) >= 0)
+                break;
+            distances[pos] = distances[child];
+            ids[pos] = ids[child];
+            pos = child;
+        }
+        distances[pos] = distance;
+        ids[pos] = kanjiId;
+    }
+}
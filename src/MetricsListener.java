@@ -0,0 +1,10 @@
+// Receives every measurement taken by RecognitionMetrics while it's enabled, e.g. to forward them to an external
+// metrics system. Listeners are called on the thread doing the work, so they should return quickly.
+public interface MetricsListener {
+
+    // A stage of the recognition pipeline took 'nanos' nanoseconds
+    void stageCompleted(RecognitionMetrics.Stage stage, long nanos);
+
+    // A counter went up by 'delta'
+    void counterIncreased(RecognitionMetrics.Counter counter, long delta);
+}
@@ -0,0 +1,221 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.util.Arrays;
+
+// Brings an image of any size down (or up) to a fixed working resolution before feature extraction, so the cost of
+// a query doesn't depend on how large the submitted image is. The image is read once (twice with an Otsu threshold)
+// to find the ink, the ink's bounding box is resampled by area-averaging into a size x size square (keeping its
+// aspect ratio, centred, with 'margin' pixels to spare on each side), and the result is binarized.
+//
+// The threshold applies to the blue component, like Processor.INK_THRESHOLD: a pixel is ink if it's below it. Pass
+// OTSU to pick a threshold for each image from its histogram instead.
+//
+// A Normalizer keeps its scratch buffers between calls and so must not be shared between threads. Features of a
+// normalized image are only comparable with reference data that was normalized the same way (see Preprocessor's
+// --normalize), which is why BatchRecognizer and RecognitionServer only normalize when asked to.
+public final class Normalizer {
+
+    public static final int OTSU = -1;
+
+    static final int DEFAULT_SIZE = 250;
+    static final int DEFAULT_MARGIN = 8;
+
+    private final int size, margin, threshold;
+
+    // Scratch space, grown as needed and then reused
+    private int[] row = new int[0];
+    private double[] resampledRow = new double[0];
+    private double[] darkness = new double[0];
+    private final int[] histogram = new int[256];
+    private int[] palette = new int[0]; // RGB value of every index, for palette images (the image being normalized's)
+    private boolean usePalette;
+    private BitImage bits; // The image being normalized, if it's already binarized
+
+    public Normalizer() {
+        this(DEFAULT_SIZE, DEFAULT_MARGIN, Processor.INK_THRESHOLD);
+    }
+
+    public Normalizer(int size, int margin, int threshold) {
+        if (size <= 0 || margin < 0 || 2 * margin >= size || threshold < OTSU || threshold > 256)
+            throw new IllegalArgumentException("Bad size, margin or threshold");
+        this.size = size;
+        this.margin = margin;
+        this.threshold = threshold;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public BitImage normalize(BufferedImage img) {
+        return normalize(img, new BitImage(size, size));
+    }
+
+    // The same into 'normalized', which must be getSize() x getSize(). Nothing is allocated once the scratch space has
+    // grown to fit the images seen.
+    public BitImage normalize(BufferedImage img, BitImage normalized) {
+        bits = null;
+        return normalize(img, img.getWidth(), img.getHeight(), normalized);
+    }
+
+    // The same for an image that's already binarized (a set pixel being ink), such as a glyph cut out of a page
+    public BitImage normalize(BitImage image) {
+        return normalize(image, new BitImage(size, size));
+    }
+
+    public BitImage normalize(BitImage image, BitImage normalized) {
+        bits = image;
+        try {
+            return normalize(null, image.getWidth(), image.getHeight(), normalized);
+        } finally {
+            bits = null;
+        }
+    }
+
+    private BitImage normalize(BufferedImage img, int width, int height, BitImage normalized) {
+        if (normalized.getWidth() != size || normalized.getHeight() != size)
+            throw new IllegalArgumentException("Normalized images are " + size + "x" + size);
+        int minX = Integer.MAX_VALUE, maxX = -1, minY = Integer.MAX_VALUE, maxY = -1;
+        int t = threshold;
+
+        if (row.length < width)
+            row = new int[width];
+        usePalette = img != null && BitImage.paletteSize(img) > 0;
+        if (usePalette) {
+            IndexColorModel colors = (IndexColorModel)img.getColorModel();
+            if (palette.length < BitImage.paletteSize(img))
+                palette = new int[BitImage.paletteSize(img)];
+            Arrays.fill(palette, 0);
+            for (int i = 0; i < colors.getMapSize(); i++)
+                palette[i] = colors.getRGB(i);
+        }
+
+        if (t == OTSU) {
+            Arrays.fill(histogram, 0);
+            for (int y = 0; y < height; y++) {
+                readRow(img, y, 0, width);
+                for (int x = 0; x < width; x++)
+                    histogram[row[x] & 0xFF]++;
+            }
+            t = otsu(histogram, (long)width * height);
+        }
+
+        // The bounding box of the ink
+        for (int y = 0; y < height; y++) {
+            readRow(img, y, 0, width);
+            int first = -1, last = -1;
+            for (int x = 0; x < width; x++) {
+                if ((row[x] & 0xFF) < t) {
+                    if (first == -1)
+                        first = x;
+                    last = x;
+                }
+            }
+            if (first != -1) {
+                minX = Math.min(minX, first);
+                maxX = Math.max(maxX, last);
+                minY = Math.min(minY, y);
+                maxY = y;
+            }
+        }
+
+        normalized.clear();
+        if (maxY == -1)
+            return normalized;
+
+        // Fit the box into the square, scaling its longer side to size - 2 * margin
+        int boxWidth = maxX - minX + 1, boxHeight = maxY - minY + 1;
+        double scale = (double)(size - 2 * margin) / Math.max(boxWidth, boxHeight);
+        int dstWidth = Math.max(1, Math.min(size, (int)Math.round(boxWidth * scale)));
+        int dstHeight = Math.max(1, Math.min(size, (int)Math.round(boxHeight * scale)));
+        resample(img, minX, minY, boxWidth, boxHeight, dstWidth, dstHeight);
+
+        // A destination pixel is ink if its average value is below the threshold
+        int offsetX = (size - dstWidth) / 2, offsetY = (size - dstHeight) / 2;
+        double area = ((double)boxWidth / dstWidth) * ((double)boxHeight / dstHeight);
+        double minDarkness = (255 - t) * area;
+        for (int y = 0; y < dstHeight; y++) {
+            for (int x = 0; x < dstWidth; x++) {
+                if (darkness[y * dstWidth + x] > minDarkness)
+                    normalized.set(offsetY + y, offsetX + x);
+            }
+        }
+        return normalized;
+    }
+
+    // Area-average the box [minX, minX + boxWidth) x [minY, minY + boxHeight) into a dstWidth x dstHeight grid of
+    // summed darkness (255 - value, weighted by how much of each source pixel falls into the destination pixel). Each
+    // source row is resampled horizontally once, then spread over the destination rows it overlaps.
+    private void resample(BufferedImage img, int minX, int minY, int boxWidth, int boxHeight, int dstWidth,
+                          int dstHeight) {
+        double xStep = (double)boxWidth / dstWidth, yStep = (double)boxHeight / dstHeight;
+
+        if (resampledRow.length < dstWidth)
+            resampledRow = new double[dstWidth];
+        if (darkness.length < dstWidth * dstHeight)
+            darkness = new double[dstWidth * dstHeight];
+        Arrays.fill(darkness, 0, dstWidth * dstHeight, 0);
+
+        for (int sy = 0; sy < boxHeight; sy++) {
+            readRow(img, minY + sy, minX, boxWidth);
+            for (int dx = 0; dx < dstWidth; dx++) {
+                double start = dx * xStep, end = (dx + 1) * xStep;
+                double sum = 0;
+                for (int sx = (int)start; sx < end && sx < boxWidth; sx++)
+                    sum += (255 - (row[sx] & 0xFF)) * (Math.min(end, sx + 1) - Math.max(start, sx));
+                resampledRow[dx] = sum;
+            }
+
+            for (int dy = (int)(sy / yStep); dy < dstHeight && dy * yStep < sy + 1; dy++) {
+                double overlap = Math.min((dy + 1) * yStep, sy + 1) - Math.max(dy * yStep, sy);
+                if (overlap <= 0)
+                    continue;
+                int base = dy * dstWidth;
+                for (int dx = 0; dx < dstWidth; dx++)
+                    darkness[base + dx] += overlap * resampledRow[dx];
+            }
+        }
+    }
+
+    // RGB values of n pixels of row y starting at column x, into 'row'
+    private void readRow(BufferedImage img, int y, int x, int n) {
+        if (bits != null) {
+            for (int i = 0; i < n; i++)
+                row[i] = bits.get(y, x + i) ? 0 : 0xFFFFFF;
+        } else if (img.getType() == BufferedImage.TYPE_INT_RGB || img.getType() == BufferedImage.TYPE_INT_ARGB) {
+            img.getRaster().getDataElements(x, y, n, 1, row);
+        } else if (usePalette) {
+            img.getRaster().getSamples(x, y, n, 1, 0, row);
+            for (int i = 0; i < n; i++)
+                row[i] = palette[row[i]];
+        } else {
+            img.getRGB(x, y, n, 1, row, 0, n);
+        }
+    }
+
+    // Otsu's method: the threshold that best separates the histogram into two classes (maximum between-class
+    // variance). Values below the returned threshold are the darker class.
+    static int otsu(int[] histogram, long total) {
+        double sumAll = 0;
+        for (int i = 0; i < 256; i++)
+            sumAll += (double)i * histogram[i];
+
+        double sumBelow = 0, best = -1;
+        long countBelow = 0;
+        int threshold = Processor.INK_THRESHOLD;
+        for (int t = 1; t < 256; t++) {
+            countBelow += histogram[t - 1];
+            sumBelow += (double)(t - 1) * histogram[t - 1];
+            long countAbove = total - countBelow;
+            if (countBelow == 0 || countAbove == 0)
+                continue;
+            double meanBelow = sumBelow / countBelow, meanAbove = (sumAll - sumBelow) / countAbove;
+            double variance = (double)countBelow * countAbove * (meanBelow - meanAbove) * (meanBelow - meanAbove);
+            if (variance > best) {
+                best = variance;
+                threshold = t;
+            }
+        }
+        return threshold;
+    }
+}
@@ -0,0 +1,628 @@
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Finds and recognizes every glyph on a scanned page without ever holding the whole page. The page is read a strip
+// of rows at a time and labelled as it goes: ink is split into runs, and each run joins the (8-connected) regions of
+// the runs touching it in the row above, so only the previous row's runs are kept. A region is complete once a row
+// goes by without extending it. Complete regions whose boxes come within 'gap' pixels of each other are grouped into
+// one glyph (a kanji is usually several strokes), and a glyph is complete once the scan is more than 'gap' rows
+// below it and no region still being labelled comes near it.
+//
+// A complete glyph is cut out of a ring of the most recent rows, normalized (see Normalizer) and has its attributes
+// extracted on a pool of threads, and glyphs are then matched 'batchSize' at a time in one pass over the reference
+// rows (see WeightedIndex.scanBatch()). Memory therefore depends on the page's width, the strip height and
+// 'maxGlyph' (the ring holds maxGlyph + gap + strip rows), not on the height of the page. Regions or glyphs larger
+// than 'maxGlyph' in either direction (rules, borders, pictures) are reported as skipped rather than recognized.
+//
+// Glyphs on a page are a different size from the reference images, so they're always normalized, and the reference
+// data should be normalized too (see Preprocessor's --normalize).
+//
+// Pages are read through ImageIO a region at a time, or straight from the stream for binary PGM and PBM files
+// ("P5" and "P4"). Which ImageIO formats can read a region without decoding the rows above it depends on the
+// reader; the memory bound holds either way.
+//
+// Usage: PageSegmenter [--strip rows] [--gap px] [--min-pixels n] [--max-glyph px] [--top k] [--batch n]
+//                      [--threads n] [--out file] page
+// Each glyph is written as a line of JSON: its box on the page, and either its matches or why it was skipped.
+public class PageSegmenter {
+
+    // Receives the glyphs of a page in the order they're completed, on the thread that called segment()
+    public interface Listener {
+        void glyphRecognized(Glyph glyph) throws IOException;
+    }
+
+    // A glyph's box on the page (inclusive), and its best matches or the reason it wasn't recognized
+    public static final class Glyph {
+        public final int minX, minY, maxX, maxY;
+        public final Match[] matches;
+        public final String skipped;
+
+        Glyph(Box box, Match[] matches, String skipped) {
+            minX = box.minX;
+            minY = box.minY;
+            maxX = box.maxX;
+            maxY = box.maxY;
+            this.matches = matches;
+            this.skipped = skipped;
+        }
+    }
+
+    private final ReferenceIndex index;
+    private final int stripRows, gap, minPixels, maxGlyph, numMatches, batchSize, numThreads;
+
+    public PageSegmenter(ReferenceIndex index, int stripRows, int gap, int minPixels, int maxGlyph, int numMatches,
+                         int batchSize, int numThreads) {
+        if (stripRows <= 0 || gap < 0 || minPixels < 0 || maxGlyph <= 0 || numMatches <= 0 || batchSize <= 0
+                || numThreads <= 0 || (long)maxGlyph + gap + stripRows >= Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Bad strip, gap, size, match, batch or thread setting");
+        this.index = index;
+        this.stripRows = stripRows;
+        this.gap = gap;
+        this.minPixels = minPixels;
+        this.maxGlyph = maxGlyph;
+        this.numMatches = numMatches;
+        this.batchSize = batchSize;
+        this.numThreads = numThreads;
+    }
+
+    // Segment and recognize the page in 'file'. Returns the number of glyphs found (skipped ones included).
+    public int segment(File file, Listener listener) throws IOException, InterruptedException {
+        StripSource source = StripSource.open(file);
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+
+        try {
+            return new Scan(source, pool, listener).run();
+        } finally {
+            pool.shutdownNow();
+            source.close();
+        }
+    }
+
+    // A connected region of ink, or several that turned out to be connected (see Scan.find())
+    private static final class Region {
+        Region parent;     // The region this one was merged into, if it was
+        int minX, minY, maxX, maxY;
+        long pixels;
+        int lastRow;       // The last row with a run of this region
+        int seenRow = -1;  // The last row in which it was listed as active
+
+        Region(int y, int xstart, int xend) {
+            minX = xstart;
+            maxX = xend;
+            minY = maxY = lastRow = y;
+        }
+    }
+
+    // A box of ink on the page: a glyph being put together
+    private static final class Box {
+        int minX, minY, maxX, maxY;
+
+        Box(int minX, int minY, int maxX, int maxY) {
+            this.minX = minX;
+            this.minY = minY;
+            this.maxX = maxX;
+            this.maxY = maxY;
+        }
+
+        boolean isNear(int minX, int minY, int maxX, int maxY, int gap) {
+            return minX - gap <= this.maxX && this.minX - gap <= maxX && minY - gap <= this.maxY
+                    && this.minY - gap <= maxY;
+        }
+
+        void add(int minX, int minY, int maxX, int maxY) {
+            this.minX = Math.min(this.minX, minX);
+            this.minY = Math.min(this.minY, minY);
+            this.maxX = Math.max(this.maxX, maxX);
+            this.maxY = Math.max(this.maxY, maxY);
+        }
+    }
+
+    // A glyph waiting for its attributes, in the order glyphs are completed
+    private static final class Pending {
+        final Box box;
+        final Future<double[]> attributes; // null if the glyph was skipped
+        final String skipped;
+
+        Pending(Box box, Future<double[]> attributes, String skipped) {
+            this.box = box;
+            this.attributes = attributes;
+            this.skipped = skipped;
+        }
+    }
+
+    // The state of one pass over a page
+    private final class Scan {
+        final StripSource source;
+        final ExecutorService pool;
+        final Listener listener;
+        final int width, height;
+        final BitImage ring;  // Row y of the page is row y % ring.getHeight()
+
+        // Runs of the previous and the current row: [starts[i], ends[i]) belongs to regions[i]
+        int[] prevStarts, prevEnds, starts, ends;
+        Region[] prevRegions, regions;
+        int numPrev, numCurrent;
+
+        final ArrayList<Region> active = new ArrayList<Region>(); // Regions with a run in the current row
+        final ArrayList<Box> glyphs = new ArrayList<Box>();       // Glyphs that may still grow
+        final ArrayList<Pending> pending = new ArrayList<Pending>();
+        int numGlyphs;
+
+        Scan(StripSource source, ExecutorService pool, Listener listener) {
+            this.source = source;
+            this.pool = pool;
+            this.listener = listener;
+            width = source.getWidth();
+            height = source.getHeight();
+            ring = new BitImage(width, Math.min(height, maxGlyph + gap + stripRows + 1));
+            int maxRuns = width / 2 + 1;
+            prevStarts = new int[maxRuns];
+            prevEnds = new int[maxRuns];
+            starts = new int[maxRuns];
+            ends = new int[maxRuns];
+            prevRegions = new Region[maxRuns];
+            regions = new Region[maxRuns];
+        }
+
+        int run() throws IOException, InterruptedException {
+            for (int y = 0; y < height; y += stripRows) {
+                int rows = Math.min(stripRows, height - y);
+                BitImage strip = source.read(y, rows);
+                for (int i = 0; i < rows; i++) {
+                    strip.copyRow(i, ring, (y + i) % ring.getHeight());
+                    label(y + i);
+                }
+                emitGlyphs(y + rows, false);
+            }
+
+            // Everything still open ends with the page. A region can have several runs in the last row, so (as in
+            // label()) each is marked as seen, here in the row after the page, and only completed once.
+            for (int i = 0; i < numPrev; i++) {
+                Region region = find(prevRegions[i]);
+                if (region.seenRow != height) {
+                    region.seenRow = height;
+                    complete(region);
+                }
+            }
+            numPrev = 0;
+            active.clear();
+            emitGlyphs(height + gap + 1, true);
+            flush(true);
+            return numGlyphs;
+        }
+
+        // Label row y, and complete the regions of row y - 1 that it doesn't continue
+        void label(int y) {
+            int rowInRing = y % ring.getHeight();
+            int p = 0;
+
+            numCurrent = 0;
+            active.clear();
+            for (int x = ring.nextBit(rowInRing, 0, true); x < width; ) {
+                int end = ring.nextBit(rowInRing, x, false);
+
+                // Runs of the row above that touch [x - 1, end] (8-connectivity). The last of them may touch the
+                // next run of this row as well, so 'p' stays on it.
+                while (p < numPrev && prevEnds[p] < x)
+                    p++;
+                Region region = null;
+                for (int q = p; q < numPrev && prevStarts[q] <= end; q++)
+                    region = region == null ? find(prevRegions[q]) : union(region, find(prevRegions[q]));
+                if (region == null)
+                    region = new Region(y, x, end - 1);
+                region.minX = Math.min(region.minX, x);
+                region.maxX = Math.max(region.maxX, end - 1);
+                region.maxY = y;
+                region.lastRow = y;
+                region.pixels += end - x;
+
+                starts[numCurrent] = x;
+                ends[numCurrent] = end;
+                regions[numCurrent++] = region;
+                x = ring.nextBit(rowInRing, end, true);
+            }
+
+            for (int i = 0; i < numPrev; i++) {
+                Region region = find(prevRegions[i]);
+                if (region.lastRow < y && region.seenRow != y) {
+                    region.seenRow = y;
+                    complete(region);
+                }
+            }
+            for (int i = 0; i < numCurrent; i++) {
+                Region region = find(regions[i]);
+                if (region.seenRow != y) {
+                    region.seenRow = y;
+                    active.add(region);
+                }
+            }
+
+            int[] ints = prevStarts;
+            prevStarts = starts;
+            starts = ints;
+            ints = prevEnds;
+            prevEnds = ends;
+            ends = ints;
+            Region[] swap = prevRegions;
+            prevRegions = regions;
+            regions = swap;
+            numPrev = numCurrent;
+        }
+
+        Region find(Region region) {
+            Region root = region;
+            while (root.parent != null)
+                root = root.parent;
+            while (region != root) { // Path compression
+                Region next = region.parent;
+                region.parent = root;
+                region = next;
+            }
+            return root;
+        }
+
+        Region union(Region a, Region b) {
+            if (a == b)
+                return a;
+            b.parent = a;
+            a.minX = Math.min(a.minX, b.minX);
+            a.minY = Math.min(a.minY, b.minY);
+            a.maxX = Math.max(a.maxX, b.maxX);
+            a.maxY = Math.max(a.maxY, b.maxY);
+            a.lastRow = Math.max(a.lastRow, b.lastRow);
+            a.pixels += b.pixels;
+            return a;
+        }
+
+        // A region is finished: drop it if it's a speck, skip it if it's too large, and otherwise add it to every
+        // glyph near it (joining them into one)
+        void complete(Region region) {
+            if (region.pixels < minPixels)
+                return;
+            Box box = new Box(region.minX, region.minY, region.maxX, region.maxY);
+            if (isTooLarge(box)) {
+                pending.add(new Pending(box, null, "too large"));
+                return;
+            }
+
+            for (boolean grew = true; grew; ) {
+                grew = false;
+                for (Iterator<Box> it = glyphs.iterator(); it.hasNext(); ) {
+                    Box glyph = it.next();
+                    if (glyph.isNear(box.minX, box.minY, box.maxX, box.maxY, gap)) {
+                        box.add(glyph.minX, glyph.minY, glyph.maxX, glyph.maxY);
+                        it.remove();
+                        grew = true;
+                    }
+                }
+            }
+            glyphs.add(box);
+        }
+
+        boolean isTooLarge(Box box) {
+            return box.maxX - box.minX + 1 > maxGlyph || box.maxY - box.minY + 1 > maxGlyph;
+        }
+
+        // Send off the glyphs that nothing below row 'nextRow' can join any more. With 'all', every glyph goes. A
+        // glyph whose first row would be overwritten in the ring by the next strip goes as it is.
+        void emitGlyphs(int nextRow, boolean all) throws IOException, InterruptedException {
+            for (Iterator<Box> it = glyphs.iterator(); it.hasNext(); ) {
+                Box glyph = it.next();
+                boolean tooLarge = isTooLarge(glyph);
+                boolean expiring = glyph.minY <= nextRow + stripRows - 1 - ring.getHeight();
+                if (!all && !tooLarge && !expiring && (glyph.maxY + gap >= nextRow || isNearActive(glyph)))
+                    continue;
+                it.remove();
+                if (tooLarge) {
+                    pending.add(new Pending(glyph, null, "too large"));
+                } else {
+                    final BitImage crop = crop(glyph);
+                    pending.add(new Pending(glyph, pool.submit(new Callable<double[]>() {
+                        public double[] call() {
+                            return ExtractionWorkspace.forCurrentThread().extract(crop, true,
+                                    new double[Processor.WEIGHTS.length]);
+                        }
+                    }), null));
+                }
+            }
+            flush(false);
+        }
+
+        // Whether a region that's still being labelled (and isn't too large to be part of a glyph) comes near
+        boolean isNearActive(Box glyph) {
+            for (Region region : active) {
+                if (region.maxX - region.minX < maxGlyph && region.maxY - region.minY < maxGlyph
+                        && glyph.isNear(region.minX, region.minY, region.maxX, region.maxY, gap))
+                    return true;
+            }
+            return false;
+        }
+
+        // The glyph's box, cut out of the ring of recent rows
+        BitImage crop(Box glyph) {
+            BitImage crop = new BitImage(glyph.maxX - glyph.minX + 1, glyph.maxY - glyph.minY + 1);
+
+            for (int y = glyph.minY; y <= glyph.maxY; y++) {
+                int rowInRing = y % ring.getHeight();
+                for (int x = ring.nextBit(rowInRing, glyph.minX, true); x <= glyph.maxX; ) {
+                    int end = Math.min(ring.nextBit(rowInRing, x, false), glyph.maxX + 1);
+                    for (; x < end; x++)
+                        crop.set(y - glyph.minY, x - glyph.minX);
+                    x = x > glyph.maxX ? x : ring.nextBit(rowInRing, x, true);
+                }
+            }
+            return crop;
+        }
+
+        // Match the glyphs waiting for it in batches, and hand them to the listener in order. Without 'all', only
+        // whole batches are matched.
+        void flush(boolean all) throws IOException, InterruptedException {
+            while (pending.size() >= batchSize || (all && !pending.isEmpty())) {
+                int n = Math.min(batchSize, pending.size());
+                ArrayList<double[]> attributes = new ArrayList<double[]>();
+                for (int i = 0; i < n; i++) {
+                    if (pending.get(i).attributes != null) {
+                        try {
+                            attributes.add(pending.get(i).attributes.get());
+                        } catch (ExecutionException e) {
+                            throw new IOException(e.getCause());
+                        }
+                    }
+                }
+
+                int[] k = new int[attributes.size()];
+                for (int i = 0; i < k.length; i++)
+                    k[i] = numMatches;
+                Match[][] matches = k.length == 0 ? new Match[0][]
+                        : index.findBestMatches(attributes.toArray(new double[k.length][]), k);
+                for (int i = 0, next = 0; i < n; i++) {
+                    Pending glyph = pending.get(i);
+                    Match[] glyphMatches = glyph.attributes != null ? matches[next++] : null;
+                    numGlyphs++;
+                    listener.glyphRecognized(new Glyph(glyph.box, glyphMatches, glyph.skipped));
+                }
+                pending.subList(0, n).clear();
+            }
+        }
+    }
+
+    // Where a page's rows come from, a strip at a time, binarized
+    private abstract static class StripSource {
+
+        abstract int getWidth();
+
+        abstract int getHeight();
+
+        // Rows [y, y + rows) as a BitImage of that many rows; strips are asked for in order
+        abstract BitImage read(int y, int rows) throws IOException;
+
+        abstract void close() throws IOException;
+
+        static StripSource open(File file) throws IOException {
+            InputStream in = new BufferedInputStream(new FileInputStream(file));
+            int p = in.read(), type = in.read();
+            if (p == 'P' && (type == '4' || type == '5'))
+                return new PnmSource(in, type == '4');
+            in.close();
+            return new ImageIOSource(file);
+        }
+    }
+
+    // Any format ImageIO reads, a source region at a time
+    private static final class ImageIOSource extends StripSource {
+        private final ImageInputStream stream;
+        private final ImageReader reader;
+        private final int width, height;
+
+        ImageIOSource(File file) throws IOException {
+            stream = ImageIO.createImageInputStream(file);
+            Iterator<ImageReader> readers = stream == null ? null : ImageIO.getImageReaders(stream);
+            if (readers == null || !readers.hasNext()) {
+                if (stream != null)
+                    stream.close();
+                throw new IOException(file + ": unsupported image format");
+            }
+            reader = readers.next();
+            reader.setInput(stream);
+            width = reader.getWidth(0);
+            height = reader.getHeight(0);
+        }
+
+        int getWidth() {
+            return width;
+        }
+
+        int getHeight() {
+            return height;
+        }
+
+        BitImage read(int y, int rows) throws IOException {
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(new Rectangle(0, y, width, rows));
+            BufferedImage strip = reader.read(0, param);
+            return BitImage.fromImage(strip, Processor.INK_THRESHOLD);
+        }
+
+        void close() throws IOException {
+            reader.dispose();
+            stream.close();
+        }
+    }
+
+    // Binary PGM (8 bit gray, "P5") or PBM ("P4"), streamed row by row
+    private static final class PnmSource extends StripSource {
+        private final InputStream in;
+        private final boolean bitmap;
+        private final int width, height;
+        private final byte[] row;
+
+        PnmSource(InputStream in, boolean bitmap) throws IOException {
+            this.in = in;
+            this.bitmap = bitmap;
+            width = readNumber();
+            height = readNumber();
+            int maxValue = bitmap ? 1 : readNumber();
+            if (width <= 0 || height <= 0 || maxValue <= 0 || maxValue > 255)
+                throw new IOException("Unsupported PNM header: " + width + "x" + height + ", maximum " + maxValue);
+            row = new byte[bitmap ? (width + 7) / 8 : width];
+        }
+
+        // The next number in the header (a single whitespace character follows the last one)
+        private int readNumber() throws IOException {
+            int c = in.read();
+            while (c == '#' || Character.isWhitespace(c)) {
+                if (c == '#') {
+                    while (c != '\n' && c != -1)
+                        c = in.read();
+                }
+                c = in.read();
+            }
+            int number = 0;
+            for (; c >= '0' && c <= '9'; c = in.read())
+                number = number * 10 + (c - '0');
+            return number;
+        }
+
+        int getWidth() {
+            return width;
+        }
+
+        int getHeight() {
+            return height;
+        }
+
+        BitImage read(int y, int rows) throws IOException {
+            BitImage strip = new BitImage(width, rows);
+
+            for (int i = 0; i < rows; i++) {
+                for (int read = 0, n; read < row.length; read += n) {
+                    if ((n = in.read(row, read, row.length - read)) < 0)
+                        throw new EOFException("The image ends at row " + (y + i) + " of " + height);
+                }
+                for (int x = 0; x < width; x++) {
+                    boolean ink = bitmap ? (row[x >>> 3] & (0x80 >>> (x & 7))) != 0
+                            : (row[x] & 0xFF) < Processor.INK_THRESHOLD;
+                    if (ink)
+                        strip.set(i, x);
+                }
+            }
+            return strip;
+        }
+
+        void close() throws IOException {
+            in.close();
+        }
+    }
+
+    public static void main(String[] args) {
+        int stripRows = 64, gap = 8, minPixels = 4, maxGlyph = 400, numMatches = 10, batchSize = 32;
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        String outPath = null, page = null;
+
+        // A bad value for any option is a usage error, like a missing page
+        String error = null;
+        int i = 0;
+        try {
+            for (; i < args.length; i++) {
+                if (args[i].equals("--strip") && i + 1 < args.length)
+                    stripRows = Integer.parseInt(args[++i]);
+                else if (args[i].equals("--gap") && i + 1 < args.length)
+                    gap = Integer.parseInt(args[++i]);
+                else if (args[i].equals("--min-pixels") && i + 1 < args.length)
+                    minPixels = Integer.parseInt(args[++i]);
+                else if (args[i].equals("--max-glyph") && i + 1 < args.length)
+                    maxGlyph = Integer.parseInt(args[++i]);
+                else if (args[i].equals("--top") && i + 1 < args.length)
+                    numMatches = Integer.parseInt(args[++i]);
+                else if (args[i].equals("--batch") && i + 1 < args.length)
+                    batchSize = Integer.parseInt(args[++i]);
+                else if (args[i].equals("--threads") && i + 1 < args.length)
+                    numThreads = Integer.parseInt(args[++i]);
+                else if (args[i].equals("--out") && i + 1 < args.length)
+                    outPath = args[++i];
+                else
+                    page = args[i];
+            }
+            if (stripRows < 1 || maxGlyph < 1 || numMatches < 1 || batchSize < 1 || numThreads < 1)
+                error = "--strip, --max-glyph, --top, --batch and --threads must be at least 1";
+            else if (gap < 0 || minPixels < 0)
+                error = "--gap and --min-pixels can't be negative";
+            else if ((long)maxGlyph + gap + stripRows >= Integer.MAX_VALUE)
+                error = "--max-glyph, --gap and --strip add up to more rows than the ring can hold";
+        } catch (IllegalArgumentException e) { // From parseInt(), after 'i' moved on to the value
+            error = "Bad value for " + args[i - 1] + ": " + args[i];
+        }
+        if (error != null || page == null) {
+            if (error != null)
+                System.err.println(error);
+            System.err.println("Usage: PageSegmenter [--strip rows] [--gap px] [--min-pixels n] [--max-glyph px] "
+                    + "[--top k] [--batch n] [--threads n] [--out file] page");
+            System.exit(2);
+        }
+
+        try {
+            BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(
+                    BatchRecognizer.KANJI_LIST_PATH), "utf-8"));
+            final String kanjiStr = br.readLine();
+            br.close();
+
+            final Writer out = new BufferedWriter(new OutputStreamWriter(
+                    outPath == null ? System.out : new FileOutputStream(outPath), "utf-8"));
+            PageSegmenter segmenter = new PageSegmenter(ReferenceIndex.getShared(), stripRows, gap, minPixels,
+                    maxGlyph, numMatches, batchSize, numThreads);
+            long start = System.nanoTime();
+            int numGlyphs = segmenter.segment(new File(page), new Listener() {
+                public void glyphRecognized(Glyph glyph) throws IOException {
+                    StringBuilder line = new StringBuilder("{\"x\":").append(glyph.minX).append(",\"y\":")
+                            .append(glyph.minY).append(",\"width\":").append(glyph.maxX - glyph.minX + 1)
+                            .append(",\"height\":").append(glyph.maxY - glyph.minY + 1);
+                    if (glyph.skipped != null) {
+                        line.append(",\"skipped\":").append(BatchRecognizer.jsonString(glyph.skipped));
+                    } else {
+                        line.append(",\"matches\":[");
+                        for (int i = 0; i < glyph.matches.length; i++) {
+                            int id = glyph.matches[i].getKanjiId();
+                            line.append(i == 0 ? "" : ",").append("{\"id\":").append(id).append(",\"kanji\":")
+                                    .append(BatchRecognizer.jsonString(id <= kanjiStr.length()
+                                            ? kanjiStr.charAt(id - 1) + "" : ""))
+                                    .append(",\"distance\":")
+                                    .append(BatchRecognizer.jsonNumber(glyph.matches[i].getDistance())).append("}");
+                        }
+                        line.append("]");
+                    }
+                    out.write(line.append("}\n").toString());
+                }
+            });
+            out.close();
+            System.err.println(numGlyphs + " glyphs in " + (System.nanoTime() - start) / 1000000 + " ms");
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,42 +1,222 @@
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 // Takes a set of kanji images (the i'th kanji in /resources/kanjilist.txt should be named 'i.gif'), "processes"
 // each image for its attributes, and then populates 'data.txt' with the attributes of each kanji. This only
 // needs to be run whenever the set of images is modified.
+//
+// Images are processed in parallel on a fork-join pool. A manifest next to 'data.txt' records a hash of every image
+// that went into it, so on later runs only the images that were added or changed are processed again; the lines of
+// the others are copied over from the previous 'data.txt'. The same data is also written as a binary feature store
+// (see FeatureStore), which is what the recognizer loads when it's available.
+//
+// With --normalize, every image goes through a Normalizer first, as BatchRecognizer and RecognitionServer do with
+// the same flag. The manifest records which way each line was made and with which Processor.EXTRACTION_VERSION, so
+// switching modes or changing the extraction processes everything again.
+//
+// If any image can't be read or processed, every failure is reported and the run fails without writing anything, so
+// a partial 'data.txt' is never published.
 public class Preprocessor {
 
-    private static final String INPUT_PATH = "/home/joey/IdeaProjects/Kanji Detection/resources/images/";
+    static final String INPUT_PATH = "/home/joey/IdeaProjects/Kanji Detection/resources/images/";
     private static final String OUTPUT_PATH = "/home/joey/IdeaProjects/Kanji Detection/resources/data.txt";
+    private static final String MANIFEST_PATH = "/home/joey/IdeaProjects/Kanji Detection/resources/data.manifest";
 
     public static void main(String[] args) {
-        BufferedImage bi;
-        ArrayList<Double> attributes;
-        BufferedWriter bw;
-        long start = System.currentTimeMillis();
-        Processor p;
+        final boolean normalize = args.length > 0 && args[0].equals("--normalize");
+        long start = System.nanoTime();
+        final AtomicLong readNanos = new AtomicLong(), extractNanos = new AtomicLong();
+        final HashMap<String, String> oldLines = new HashMap<String, String>();
+        final String[] lines, hashes;
+        int numImages, numExtracted = 0;
+        long stageStart;
 
         try {
+            // Stage 1: work out what the previous run produced
+            stageStart = System.nanoTime();
+            readPreviousRun(oldLines);
+            numImages = new File(INPUT_PATH).listFiles().length;
+            lines = new String[numImages];
+            hashes = new String[numImages];
+            long loadNanos = System.nanoTime() - stageStart;
 
-            bw = new BufferedWriter(new FileWriter(OUTPUT_PATH));
+            // Stage 2: hash every image, and extract the attributes of those that are new or have changed
+            stageStart = System.nanoTime();
+            List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+            for (int i = 1; i <= numImages; i++) {
+                final int id = i;
+                tasks.add(new Callable<Boolean>() {
+                    public Boolean call() throws IOException {
+                        long taskStart = System.nanoTime();
+                        byte[] bytes = Files.readAllBytes(new File(INPUT_PATH + id + ".gif").toPath());
+                        String hash = "v" + Processor.EXTRACTION_VERSION + "-" + (normalize ? "normalized-" : "")
+                                + hash(bytes);
+                        readNanos.addAndGet(System.nanoTime() - taskStart);
 
-            for (int i = 1; i <= new File(INPUT_PATH).listFiles().length; i++) {
-                bi = ImageIO.read(new File(INPUT_PATH + i + ".gif"));
-                p = new Processor(bi);
-                attributes = p.getAttributes();
-                for (Double attribute : attributes)
-                    bw.write(attribute + " ");
-                bw.write("\n");
+                        hashes[id - 1] = hash;
+                        lines[id - 1] = oldLines.get(id + " " + hash);
+                        if (lines[id - 1] != null)
+                            return false;
+
+                        taskStart = System.nanoTime();
+                        try {
+                            BufferedImage bi = ImageIO.read(new ByteArrayInputStream(bytes));
+                            if (bi == null)
+                                throw new IOException("unsupported image format");
+                            lines[id - 1] = toLine(ExtractionWorkspace.forCurrentThread().extract(bi, normalize,
+                                    new double[Processor.WEIGHTS.length]));
+                        } catch (IOException e) {
+                            throw new IOException(INPUT_PATH + id + ".gif: " + e.getMessage(), e);
+                        } catch (RuntimeException e) {
+                            throw new IOException(INPUT_PATH + id + ".gif: " + e, e);
+                        }
+                        extractNanos.addAndGet(System.nanoTime() - taskStart);
+                        return true;
+                    }
+                });
             }
-            bw.close();
-        }catch(IOException e){
+            int numFailed = 0;
+            for (Future<Boolean> result : ForkJoinPool.commonPool().invokeAll(tasks)) {
+                try {
+                    if (result.get())
+                        numExtracted++;
+                } catch (ExecutionException e) {
+                    // The common pool wraps a task's checked exceptions in RuntimeExceptions
+                    Throwable cause = e.getCause();
+                    while (!(cause instanceof IOException) && cause.getCause() != null)
+                        cause = cause.getCause();
+                    System.err.println(cause instanceof IOException ? cause.getMessage() : cause.toString());
+                    numFailed++;
+                }
+            }
+            if (numFailed > 0) {
+                System.err.println(numFailed + " of " + numImages + " images failed; nothing was written");
+                System.exit(1);
+            }
+            long processNanos = System.nanoTime() - stageStart;
+
+            // Stage 3: write out the new data (as text and as a binary feature store) and manifest
+            stageStart = System.nanoTime();
+            StringBuilder data = new StringBuilder(), manifest = new StringBuilder();
+            for (int i = 0; i < numImages; i++) {
+                data.append(lines[i]).append("\n");
+                manifest.append(i + 1).append(" ").append(hashes[i]).append("\n");
+            }
+            // The store goes first, since ReferenceIndex.loadDefault() prefers it to 'data.txt' and it must never be
+            // older than the text. If it can't be written nothing has been replaced; if 'data.txt' then can't be, the
+            // new store is removed again so that the old 'data.txt' is what gets loaded.
+            String text = data.toString();
+            FeatureStore.write(ReferenceIndex.parse(OUTPUT_PATH, new BufferedReader(new StringReader(text))),
+                    FeatureStore.BINARY_PATH, false);
+            try {
+                writeAtomically(OUTPUT_PATH, text);
+            } catch (IOException e) {
+                Files.deleteIfExists(new File(FeatureStore.BINARY_PATH).toPath());
+                throw e;
+            }
+            writeAtomically(MANIFEST_PATH, manifest.toString());
+            long writeNanos = System.nanoTime() - stageStart;
+
+            System.out.println(numImages + " images, " + numExtracted + " processed, "
+                    + (numImages - numExtracted) + " unchanged");
+            System.out.println("load previous run: " + millis(loadNanos) + " ms");
+            System.out.println("hash + extract:    " + millis(processNanos) + " ms (reading/hashing "
+                    + millis(readNanos.get()) + " ms, decoding/extracting " + millis(extractNanos.get())
+                    + " ms summed over " + ForkJoinPool.commonPool().getParallelism() + " threads)");
+            System.out.println("write:             " + millis(writeNanos) + " ms");
+        } catch (IOException e) {
             e.printStackTrace();
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.exit(1);
+        }
+        System.out.println("total:             " + millis(System.nanoTime() - start) + " ms");
+    }
+
+    // Fill 'oldLines' with the lines of the current 'data.txt', keyed by "<image number> <hash of the image>" as
+    // recorded in the manifest. Nothing is reused if either file is missing or they don't agree with each other.
+    private static void readPreviousRun(HashMap<String, String> oldLines) throws IOException {
+        ArrayList<String> data = new ArrayList<String>(), manifest = new ArrayList<String>();
+
+        if (!new File(OUTPUT_PATH).exists() || !new File(MANIFEST_PATH).exists())
+            return;
+        readLines(OUTPUT_PATH, data);
+        readLines(MANIFEST_PATH, manifest);
+        if (data.size() != manifest.size())
+            return;
+        for (int i = 0; i < data.size(); i++)
+            oldLines.put(manifest.get(i), data.get(i));
+    }
+
+    private static void readLines(String path, ArrayList<String> lines) throws IOException {
+        BufferedReader br = new BufferedReader(new FileReader(path));
+        String line;
+
+        try {
+            while ((line = br.readLine()) != null)
+                lines.add(line);
+        } finally {
+            br.close();
         }
-        System.out.println(System.currentTimeMillis() - start);
     }
-}
\ No newline at end of file
+
+    // The same format that's always been used for 'data.txt': every attribute followed by a space
+    private static String toLine(double[] attributes) {
+        StringBuilder line = new StringBuilder();
+
+        for (double attribute : attributes)
+            line.append(attribute).append(" ");
+        return line.toString();
+    }
+
+    private static String hash(byte[] bytes) {
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes))
+                hex.append(String.format("%02x", b));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every JRE is required to provide SHA-256
+        }
+    }
+
+    // Write to a temporary file next to 'path' and then move it into place, so readers never see a partial file
+    private static void writeAtomically(String path, String contents) throws IOException {
+        File target = new File(path);
+        File temp = new File(path + ".tmp");
+        BufferedWriter bw = new BufferedWriter(new FileWriter(temp));
+
+        try {
+            bw.write(contents);
+        } finally {
+            bw.close();
+        }
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static long millis(long nanos) {
+        return nanos / 1000000;
+    }
+}
@@ -1,6 +1,5 @@
 import java.awt.image.BufferedImage;
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.IOException;
 import java.util.*;
 
 public class Processor {
@@ -28,32 +27,198 @@ public class Processor {
         0.3   // Number of components in third 1/3rd horizontal region
     };
 
-    boolean[][] found;
-    int[][] imgArr; //2D array representation of the
+    // Changes whenever a change to extraction (here, or in the Normalizer's defaults) changes the attributes it
+    // produces, so the Preprocessor knows not to reuse lines extracted before it
+    static final int EXTRACTION_VERSION = 1;
+
+    // Pixels whose blue component is below this are considered part of the kanji
+    static final int INK_THRESHOLD = 250;
+
+    BitImage found; // Pixels already visited by getComponents(), created on first use
+    BitImage image; // Binarized copy of the image, with the kanji's pixels set
+    IntegralImage integral; // Summed-area tables of the kanji's bounding box, for the mass and centre-of-mass features
     int minX,maxX,minY,maxY;
     int numPixels;
     ArrayList<Integer> bestMatches;
+    MatchCursor matchCursor;
+    long startNanos; // When this processor was created, if metrics are enabled (see RecognitionMetrics)
+
+    // Kept from one image to the next when this processor belongs to an ExtractionWorkspace
+    private ComponentLabeler labeler;
+    private int[][] componentRegions;
+    private int[][] cheapRegions, thirdRegions; // The same arrays, split as getCascadeQuery() labels them
+    private final int[] componentCounts = new int[COMPONENT_VALUES.length];
+    private int[] bfsQueue = new int[256]; // Ring buffer of y * width + x, its length a power of two
 
     public Processor(BufferedImage img) {
-        found = new boolean[img.getHeight()][img.getWidth()];
-        imgArr = new int[img.getHeight()][img.getWidth()];
+        this(img, RecognitionMetrics.start());
+    }
+
+    // A processor for an image that's already been binarized (a set pixel being part of the kanji). The image is
+    // used as it is, not copied.
+    public Processor(BitImage image) {
+        this(image, RecognitionMetrics.start());
+    }
+
+    private Processor(BufferedImage img, long startNanos) {
+        this(BitImage.fromImage(img, INK_THRESHOLD), startNanos);
+    }
+
+    private Processor(BitImage image, long startNanos) {
+        bestMatches = new ArrayList<Integer>();
+        load(image, startNanos);
+    }
+
+    // An empty processor, for an ExtractionWorkspace to load() one image after another into
+    Processor() {
         bestMatches = new ArrayList<Integer>();
+    }
+
+    // Start over on another image (used as it is, not copied). The summed-area tables and all the scratch space are
+    // kept from the last image, so unless this one is larger than any before it, nothing is allocated.
+    void load(BitImage image, long startNanos) {
+        this.startNanos = startNanos;
+        this.image = image;
+        if (found != null && (found.getWidth() != image.getWidth() || found.getHeight() != image.getHeight()))
+            found = null;
+        bestMatches.clear();
+        matchCursor = null;
+        setImageDimensions();
+        RecognitionMetrics.stop(RecognitionMetrics.Stage.BINARIZE, startNanos);
+        RecognitionMetrics.count(RecognitionMetrics.Counter.IMAGES_PROCESSED, 1);
+        RecognitionMetrics.count(RecognitionMetrics.Counter.PIXELS_SCANNED,
+                (long)image.getWidth() * image.getHeight());
+
+        long start = RecognitionMetrics.start();
+        if (integral == null)
+            integral = new IntegralImage(image, minY, minX, maxY, maxX);
+        else
+            integral.rebuild(image, minY, minX, maxY, maxX);
+        RecognitionMetrics.stop(RecognitionMetrics.Stage.INTEGRAL_IMAGE, start);
+    }
+
+    public ArrayList<Double> getAttributes() {
+        double[] values = getAttributes(new double[WEIGHTS.length]);
+        ArrayList<Double> attributes = new ArrayList<Double>(values.length);
+
+        for (double value : values)
+            attributes.add(value);
+        return attributes;
+    }
+
+    // The same attributes, written into 'attributes' (WEIGHTS.length of them) and returned. After the first call on
+    // a processor this allocates nothing.
+    public double[] getAttributes(double[] attributes) {
+        int[] components = countComponents(getComponentRegions(), COMPONENT_VALUES);
 
-        for (int y = 0; y < img.getHeight(); y++) {
-            for (int x = 0; x < img.getWidth(); x++) {
-                found[y][x] = false;
-                if ((img.getRGB(x, y) & 0xFF) < 250) {
-                    imgArr[y][x] = 1;
+        attributes[0] = components[0];
+        attributes[1] = components[1] - 1;
+        getMassAttributes(attributes, 2);
+        for (int i = 2; i < components.length; i++)
+            attributes[10 + i] = components[i];
+        return attributes;
+    }
+
+    // Attributes 2 to 11, which only need the bounding box and the summed-area tables, into attributes[offset...]
+    private void getMassAttributes(double[] attributes, int offset) {
+        attributes[offset] = getProportions();
+        attributes[offset + 1] = getDensity();
+        attributes[offset + 2] = getXCenter();
+        attributes[offset + 3] = getYCenter();
+        attributes[offset + 4] = getRegionWeight(minY, minX, maxY, minX + (maxX - minX) / 3);
+        attributes[offset + 5] = getRegionWeight(minY, minX + (maxX - minX)/3, maxY, maxX - (maxX - minX)/3);
+        attributes[offset + 6] = getRegionWeight(minY, maxX - (maxX - minX)/3,maxY, maxX);
+        attributes[offset + 7] = getRegionWeight(minY, minX, maxX, minY + (maxY - minY)/3);
+        attributes[offset + 8] = getRegionWeight(minY + (maxY - minY) / 3, minX, maxY - (maxY - minY) / 3, maxX);
+        attributes[offset + 9] = getRegionWeight(maxY - (maxY - minY)/3, minX, maxY, maxX);
+    }
+
+    // The same attributes as getAttributes() for a CascadeMatcher: the whole-image component counts and the mass
+    // attributes come first, and the six per-third component counts are only labelled if the matcher asks for them.
+    // Only the benchmarks query the cascade. The labeler and regions are the ones getAttributes() uses, so apart from
+    // the attributes a query allocates nothing.
+    CascadeMatcher.Query getCascadeQuery() {
+        return new CascadeMatcher.Query() {
+            private double[] attributes;
+            private boolean complete;
+
+            public double[] getCheapAttributes() {
+                if (attributes == null) {
+                    getComponentRegions();
+                    int[] components = countComponents(cheapRegions, CHEAP_VALUES);
+                    attributes = new double[WEIGHTS.length];
+                    attributes[0] = components[0];
+                    attributes[1] = components[1] - 1;
+                    getMassAttributes(attributes, 2);
                 }
+                return attributes;
             }
+
+            public double[] getAttributes() {
+                getCheapAttributes();
+                if (!complete) {
+                    getComponentRegions();
+                    int[] components = countComponents(thirdRegions, THIRD_VALUES);
+                    for (int i = 0; i < THIRD_VALUES.length; i++)
+                        attributes[CascadeMatcher.NUM_CHEAP + i] = components[i];
+                    complete = true;
+                }
+                return attributes;
+            }
+        };
+    }
+
+    // The component counts for the given regions, which getComponentRegions() must have refilled
+    private int[] countComponents(int[][] regions, int[] values) {
+        if (labeler == null)
+            labeler = new ComponentLabeler();
+        long start = RecognitionMetrics.start();
+        int[] components = labeler.countComponents(image, regions, values, componentCounts);
+        RecognitionMetrics.stop(RecognitionMetrics.Stage.COMPONENT_LABELING, start);
+        return components;
+    }
+
+    // The regions handed to the ComponentLabeler by getAttributes(). These are the same bounds (argument order
+    // included) that were passed to getComponents() when 'data.txt' was generated, so the counts are identical: the
+    // whole image, the whole inverted image (see getEnclosedRegions()) and the six 1/3rd regions. The arrays are
+    // the processor's own, refilled on every call.
+    int[][] getComponentRegions() {
+        if (componentRegions == null) {
+            componentRegions = new int[COMPONENT_VALUES.length][4];
+            cheapRegions = Arrays.copyOfRange(componentRegions, 0, CHEAP_VALUES.length);
+            thirdRegions = Arrays.copyOfRange(componentRegions, CHEAP_VALUES.length, componentRegions.length);
         }
-        setImageDimensions();
+        setRegion(componentRegions[0], 0, 0, image.getHeight() - 1, image.getWidth() - 1);
+        setRegion(componentRegions[1], 0, 0, image.getHeight() - 1, image.getWidth() - 1);
+        setRegion(componentRegions[2], minY, minX, maxY,minX + (maxX - minX) / 3);
+        setRegion(componentRegions[3], minY, minX + (maxX - minX)/3, maxY, maxX - (maxX - minX)/3);
+        setRegion(componentRegions[4], minY, maxX - (maxX - minX)/3,maxY, maxX);
+        setRegion(componentRegions[5], minY, minX, maxX, minY + (maxY - minY)/3);
+        setRegion(componentRegions[6], minY + (maxY - minY) / 3, minX, maxY - (maxY - minY) / 3, maxX);
+        setRegion(componentRegions[7], maxY - (maxY - minY)/3, minX, maxY, maxX);
+        return componentRegions;
     }
 
-    public ArrayList<Double> getAttributes() {
+    private static void setRegion(int[] region, int ymin, int xmin, int ymax, int xmax) {
+        region[0] = ymin;
+        region[1] = xmin;
+        region[2] = ymax;
+        region[3] = xmax;
+    }
+
+    // The pixel value whose components are counted in each of getComponentRegions()
+    private static final int[] COMPONENT_VALUES = {1, 0, 1, 1, 1, 1, 1, 1};
+
+    // The same split for getCascadeQuery(): the two whole-image counts, then the six per-third ones
+    private static final int[] CHEAP_VALUES = Arrays.copyOfRange(COMPONENT_VALUES, 0, 2);
+    private static final int[] THIRD_VALUES = Arrays.copyOfRange(COMPONENT_VALUES, 2, COMPONENT_VALUES.length);
+
+    // The original attribute extraction, which runs a separate BFS for every component count. getAttributes()
+    // produces the same values in a single pass; this is kept as the reference it's checked against.
+    public ArrayList<Double> getAttributesBfs() {
         ArrayList<Double> attributes = new ArrayList<Double>();
 
-        attributes.add((double)getComponents(0, 0, imgArr.length - 1, imgArr[0].length - 1));
+        attributes.add((double)getComponents(0, 0, image.getHeight() - 1, image.getWidth() - 1));
         attributes.add((double)getEnclosedRegions());
         attributes.add(getProportions());
         attributes.add(getDensity());
@@ -77,102 +242,130 @@ public class Processor {
     // Populate the "bestMatches" ArrayList with the IDs of all the other kanji ordered by their similarity to
     // the present processor's
     public ArrayList<Integer> discoverBestMatches() {
-        ArrayList<Double> attributes = getAttributes();
-        TreeMap<Double, Integer> distances = new TreeMap<Double, Integer>();
-
         try {
-            String stdAttributesStr[];
-            double stdAttributes[];
-            BufferedReader br = new BufferedReader(new FileReader(
-                    "/home/joey/IdeaProjects/Kanji Detection/resources/data.txt"));
-            String line = "";
-            double distance;
-
-            for (int count = 1; (line = br.readLine()) != null; count++) {
-                distance = 0;
-                stdAttributesStr = line.split(" ");
-                stdAttributes = new double[stdAttributesStr.length];
-
-                for (int i = 0; i < stdAttributesStr.length; i++) {
-                    stdAttributes[i] = Double.parseDouble(stdAttributesStr[i]);
-                    distance += Math.pow(WEIGHTS[i]*(stdAttributes[i] - attributes.get(i)),2);
-                }
-                distance = Math.pow(distance, 0.5);
-                distances.put(distance, count);
+            ReferenceIndex index = ReferenceIndex.getShared();
+
+            for (Match match : index.findBestMatches(toArray(getAttributes()), index.getNumRows())) {
+                bestMatches.add(match.getKanjiId());
             }
+            RecognitionMetrics.stop(RecognitionMetrics.Stage.QUERY, startNanos);
         } catch (Exception e) {
             e.printStackTrace();
         }
-        for (double key : distances.keySet()) {
-            bestMatches.add(distances.get(key));
-        }
         return bestMatches;
     }
 
+    // A cursor that hands out the ranking a page at a time. It's created on first use and then reused, so paging
+    // back and forth doesn't repeat any work, and it comes from the shared RecognitionCache, so drawing the same
+    // kanji again reuses the pages already computed for it.
+    public MatchCursor getMatchCursor(int pageSize) throws IOException {
+        if (matchCursor == null || matchCursor.getPageSize() != pageSize)
+            matchCursor = RecognitionCache.getShared().getMatchCursor(this, pageSize);
+        return matchCursor;
+    }
+
+    // The kanji's pixels, cropped to its bounding box (an empty image if there are none)
+    public BitImage getCroppedImage() {
+        if (maxY < minY)
+            return new BitImage(0, 0);
+        return image.crop(minY, minX, maxY, maxX);
+    }
+
     public ArrayList<Integer> getBestMatches() {
         return bestMatches;
     }
 
-    // Use BFS to "tag" every point in the same component as (y,x)
+    static double[] toArray(ArrayList<Double> attributes) {
+        double[] arr = new double[attributes.size()];
+        for (int i = 0; i < arr.length; i++)
+            arr[i] = attributes.get(i);
+        return arr;
+    }
+
+    private static final int[][] NEIGHBOR_OFFSETS = {{1,0},{-1,0},{0,1},{0,-1}};
+
+    // Use BFS to "tag" every point in the same component as (y,x). The queue is a ring buffer of y * width + x kept
+    // from call to call, so nothing is allocated per pixel (or at all, once it's grown large enough).
     public void fillComponent(int y, int x, int ymin, int xmin, int ymax, int xmax) {
-        Queue<Point> bfsQueue = new LinkedList<Point>();
-        int[][] neighborOffsets = {{1,0},{-1,0},{0,1},{0,-1}};
+        int width = image.getWidth();
+        int head = 0, tail = 0, mask = bfsQueue.length - 1;
         int neighborX, neighborY;
+        boolean trackPeak = RecognitionMetrics.enabled();
+        int peak = 1;
 
-        found[y][x] = true;
-        bfsQueue.add(new Point(y,x));
+        if (found == null)
+            found = new BitImage(image.getWidth(), image.getHeight());
+        found.set(y, x);
+        bfsQueue[tail++ & mask] = y * width + x;
 
-        while (!bfsQueue.isEmpty()) {
-            Point current = bfsQueue.remove();
-            for (int[] offset : neighborOffsets) {
-                neighborY = current.getY() + offset[0];
-                neighborX = current.getX() + offset[1];
+        while (head != tail) {
+            int current = bfsQueue[head++ & mask];
+            int currentY = current / width, currentX = current % width;
+            for (int[] offset : NEIGHBOR_OFFSETS) {
+                neighborY = currentY + offset[0];
+                neighborX = currentX + offset[1];
 
                 if (neighborY <= ymax && neighborY >= ymin && neighborX <= xmax && neighborX >= xmin
-                        && !found[neighborY][neighborX] && imgArr[neighborY][neighborX] == 1) {
-                    found[neighborY][neighborX] = true;
-                    bfsQueue.add(new Point(neighborY, neighborX));
+                        && !found.get(neighborY, neighborX) && image.get(neighborY, neighborX)) {
+                    found.set(neighborY, neighborX);
+                    if (tail - head == bfsQueue.length) {
+                        growQueue(head, tail);
+                        tail -= head;
+                        head = 0;
+                        mask = bfsQueue.length - 1;
+                    }
+                    bfsQueue[tail++ & mask] = neighborY * width + neighborX;
+                    if (trackPeak)
+                        peak = Math.max(peak, tail - head);
                 }
             }
         }
+        if (trackPeak)
+            RecognitionMetrics.bfsQueueSize(peak);
+    }
+
+    // Double the queue, moving the entries from 'head' to 'tail' to the start of it
+    private void growQueue(int head, int tail) {
+        int[] queue = new int[bfsQueue.length * 2];
+
+        for (int i = head; i != tail; i++)
+            queue[i - head] = bfsQueue[i & (bfsQueue.length - 1)];
+        bfsQueue = queue;
     }
 
     public int getComponents(int ymin, int xmin, int ymax, int xmax) {
         int compCount = 0;
+        long start = RecognitionMetrics.start();
+
+        if (found == null)
+            found = new BitImage(image.getWidth(), image.getHeight());
 
         for (int y = ymin; y < ymax; y++) {
             for (int x = xmin; x < xmax; x++) {
-                if (imgArr[y][x] == 1 && !found[y][x]) {
+                if (image.get(y, x) && !found.get(y, x)) {
                     fillComponent(y, x, ymin, xmin, ymax, xmax);
                     compCount++;
                 }
             }
         }
 
-        //Reset the array for use next time
-        for (int y = 0; y < found.length; y++) {
-            for (int x = 0; x < found[0].length; x++) {
-                found[y][x] = false;
-            }
-        }
+        //Reset the rows we've been through for use next time
+        found.clearRows(ymin, ymax);
+        RecognitionMetrics.stop(RecognitionMetrics.Stage.COMPONENTS_BFS, start);
         return compCount;
     }
 
     public void printImgArr(int miny, int minx, int maxy, int maxx) {
         for (int y = miny; y <= maxy;y++) {
             for (int x = minx; x <= maxx; x++) {
-                System.out.print(imgArr[y][x]);
+                System.out.print(image.get(y, x) ? 1 : 0);
             }
             System.out.println();
         }
     }
 
     public void invertImage() {
-        for (int y = 0; y < imgArr.length; y++) {
-            for (int x = 0; x < imgArr[0].length; x++) {
-                imgArr[y][x] = 1 - imgArr[y][x];
-            }
-        }
+        image.invert();
     }
 
     // Finds the number of enclosed regions within the image by "inverting" the image and finding the number of
@@ -181,107 +374,82 @@ public class Processor {
     // the kanji's pixels). That's a pretty unnatural situation in application, however.
     public int getEnclosedRegions() {
         int numEnclosedRegions;
+        long start = RecognitionMetrics.start();
 
         invertImage();
-        numEnclosedRegions = getComponents(0,0,imgArr.length - 1,imgArr[0].length - 1) - 1;
+        numEnclosedRegions = getComponents(0,0,image.getHeight() - 1,image.getWidth() - 1) - 1;
         invertImage();
+        RecognitionMetrics.stop(RecognitionMetrics.Stage.ENCLOSED_REGIONS_BFS, start);
         return numEnclosedRegions;
     }
 
     public void setImageDimensions() {
         minY = minX = Integer.MAX_VALUE;
         maxY = maxX = 0;
-
-        for (int y = 0; y < imgArr.length; y++) {
-            for (int x = 0; x < imgArr[0].length; x++) {
-                if (imgArr[y][x] == 1) {
-                    numPixels++;
-                    minY = y < minY? y : minY;
-                    maxY = y > maxY? y : maxY;
-                    minX = x < minX? x : minX;
-                    maxX = x > maxX? x : maxX;
-                }
-            }
+        numPixels = 0;
+
+        for (int y = 0; y < image.getHeight(); y++) {
+            int first = image.firstInRow(y);
+            if (first == -1)
+                continue;
+            int last = image.lastInRow(y);
+
+            numPixels += image.count(y, first, last);
+            minY = y < minY? y : minY;
+            maxY = y > maxY? y : maxY;
+            minX = first < minX? first : minX;
+            maxX = last > maxX? last : maxX;
         }
     }
 
     //Return the number of kanji pixels in the specified region divided by the total number of kanji pixels
     public double getRegionWeight(int ystart, int xstart, int yend, int xend) {
-        int numRegionPixels = 0;
+        // Note the rows run up to 'xend' and the columns to 'yend'. That's how the values in 'data.txt' were
+        // computed, so it has to stay that way to keep them comparable.
+        int numRegionPixels = integral.count(ystart, xstart, xend, yend);
+
+        return ((double)numRegionPixels)/numPixels;
+    }
+
+    // Split the kanji's bounding box into an even grid and return the relative mass of each cell, row by row. With
+    // the summed-area tables this costs a handful of lookups per cell whatever the size of the image.
+    public double[] getZoneWeights(int rows, int cols) {
+        double[] weights = new double[rows * cols];
+        int height = maxY - minY + 1, width = maxX - minX + 1;
 
-        for (int y = ystart; y <= xend; y++) {
-            for (int x = xstart; x <= yend; x++) {
-                if (imgArr[y][x] == 1)
-                    numRegionPixels++;
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < cols; j++) {
+                weights[i * cols + j] = ((double)integral.count(minY + i * height / rows, minX + j * width / cols,
+                        minY + (i + 1) * height / rows - 1, minX + (j + 1) * width / cols - 1))/numPixels;
             }
         }
-        return ((double)numRegionPixels)/numPixels;
+        return weights;
     }
 
     // Return the number of black pixels divided by the total number of pixels in the image
     public double getDensity() {
-        int pixCount = 0;
+        int pixCount = integral.count(minY, minX, maxY, maxX);
 
-        for (int y = minY; y <= maxY; y++) {
-            for (int x = minX; x <= maxX; x++) {
-                if (imgArr[y][x] == 1)
-                    pixCount++;
-            }
-        }
         return ((double)(pixCount))/((maxX - minX + 1) * (maxY - minY + 1));
     }
 
     // Find the vertical 'center of mass' of the kanji
     public double getYCenter() {
-        int yTotal = 0;
-        int pixCount = 0;
-
-        for (int y = minY; y <= maxY; y++) {
-            for (int x = minX; x <= maxX; x++) {
-                if (imgArr[y][x] == 1) {
-                    yTotal += (y - minY);
-                    pixCount++;
-                }
-            }
-        }
+        int pixCount = integral.count(minY, minX, maxY, maxX);
+        int yTotal = (int)(integral.sumY(minY, minX, maxY, maxX) - (long)pixCount * minY);
+
         return ((double)yTotal)/(pixCount * (maxY - minY));
     }
 
     // Find the horizontal 'center of mass/ of the kanji
     public double getXCenter() {
-        int xTotal = 0;
-        int pixCount = 0;
-
-        for (int y = minY; y <= maxY; y++) {
-            for (int x = minX; x <= maxX; x++) {
-                if (imgArr[y][x] == 1) {
-                    xTotal += (x - minX);
-                    pixCount++;
-                }
-            }
-        }
+        int pixCount = integral.count(minY, minX, maxY, maxX);
+        int xTotal = (int)(integral.sumX(minY, minX, maxY, maxX) - (long)pixCount * minX);
+
         return ((double)xTotal)/(pixCount * (maxX - minX));
     }
 
     public double getProportions() {
         return ((double)(maxX - minX))/(maxY - minY);
     }
-
-    // Makes the "fill component" method a little simpler
-    private class Point {
-        private int y, x;
-
-        public Point(int y, int x) {
-            this.y = y;
-            this.x = x;
-        }
-
-        public int getX() {
-            return x;
-        }
-
-        public int getY() {
-            return y;
-        }
-    }
 }
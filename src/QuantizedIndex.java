@@ -0,0 +1,301 @@
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Random;
+
+// The weighted reference rows stored at reduced precision, for a cheaper first pass over a large reference set. Each
+// feature's weighted values are mapped onto [0, 1] with a scale and offset taken from that feature's smallest and
+// largest value, and then stored either as an 8 bit code (INT8, 1 byte per value) or as a half-precision float
+// (FLOAT16, 2 bytes), column by column like WeightedIndex's doubles (8 bytes), and scanned by the same DistanceKernel.
+//
+// A query is scanned against the codes for its 'numCandidates' nearest rows by approximate distance, and only those
+// are re-ranked with the exact weighted distance, computed the same way as WeightedIndex.scan() from the full
+// precision rows of the ReferenceIndex. The distances returned are therefore exact; what quantizing can cost is a
+// true match that didn't make it into the candidates. Running this class reports how often that happens:
+// QuantizedIndex [data.txt]
+//
+// Setting the system property "kanji.quantize" to "int8" or "float16" makes every top-k query on a ReferenceIndex use
+// a QuantizedIndex, re-ranking "kanji.quantizedCandidates" (200) candidates: ReferenceIndex.findBestMatches(), the
+// server's and the PageSegmenter's batches, and the first page of a MatchCursor. The properties are read when the
+// ReferenceIndex is made, and a bad value fails that rather than every query.
+public final class QuantizedIndex {
+
+    public enum Precision { INT8, FLOAT16 }
+
+    static final int DEFAULT_CANDIDATES = 200;
+    private static final int MAX_QUERIES = 1000;
+
+    private final ReferenceIndex index;
+    private final double[] weights;
+    private final Precision precision;
+    private final int numRows, numFeatures;
+    private final double[] offsets, scales; // A weighted value is about offsets[f] + scales[f] * decoded code
+    private final byte[] bytes;             // INT8 codes, bytes[f * numRows + row] = code - 128
+    private final short[] halves;           // FLOAT16 codes, in the same order
+    private final DistanceKernel kernel;
+
+    public QuantizedIndex(ReferenceIndex index, double[] weights, Precision precision) {
+        this(index, weights, precision, DistanceKernel.get());
+    }
+
+    public QuantizedIndex(ReferenceIndex index, double[] weights, Precision precision, DistanceKernel kernel) {
+        this.index = index;
+        this.kernel = kernel;
+        this.weights = weights.clone();
+        this.precision = precision;
+        numRows = index.getNumRows();
+        numFeatures = index.getNumFeatures();
+        offsets = new double[numFeatures];
+        scales = new double[numFeatures];
+        bytes = precision == Precision.INT8 ? new byte[numRows * numFeatures] : null;
+        halves = precision == Precision.FLOAT16 ? new short[numRows * numFeatures] : null;
+        int levels = precision == Precision.INT8 ? 255 : 1;
+
+        for (int f = 0; f < numFeatures; f++) {
+            // Range of the finite values; anything else is coded as the offset and left to the re-ranking
+            double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+            for (int row = 0; row < numRows; row++) {
+                double value = weights[f] * index.get(row, f);
+                if (!Double.isInfinite(value) && !Double.isNaN(value)) {
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
+                }
+            }
+            offsets[f] = min <= max ? min : 0;
+            scales[f] = min < max ? (max - min) / levels : 1;
+
+            for (int row = 0; row < numRows; row++) {
+                double normalized = (weights[f] * index.get(row, f) - offsets[f]) / scales[f];
+                if (Double.isInfinite(normalized) || Double.isNaN(normalized))
+                    normalized = 0;
+                if (precision == Precision.INT8)
+                    bytes[f * numRows + row] = (byte)(Math.max(0, Math.min(255, Math.round(normalized))) - 128);
+                else
+                    halves[f * numRows + row] = toHalf((float)normalized);
+            }
+        }
+    }
+
+    // The precision named by the "kanji.quantize" property, or null if it isn't set
+    static Precision configuredPrecision() {
+        String name = System.getProperty("kanji.quantize");
+        if (name == null)
+            return null;
+        try {
+            return Precision.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("kanji.quantize must be int8 or float16, not " + name);
+        }
+    }
+
+    // The "kanji.quantizedCandidates" property, or DEFAULT_CANDIDATES if it isn't set
+    static int configuredCandidates() {
+        String value = System.getProperty("kanji.quantizedCandidates");
+        try {
+            int candidates = value == null ? DEFAULT_CANDIDATES : Integer.parseInt(value);
+            if (candidates >= 1)
+                return candidates;
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("kanji.quantizedCandidates must be a positive number, not " + value);
+    }
+
+    public Precision getPrecision() {
+        return precision;
+    }
+
+    public int getNumRows() {
+        return numRows;
+    }
+
+    // Bytes taken by the codes (the exact rows used for re-ranking belong to the ReferenceIndex)
+    public long getCodeBytes() {
+        return (long)numRows * numFeatures * (precision == Precision.INT8 ? 1 : 2);
+    }
+
+    // The k best matches for the given (unweighted) attributes, re-ranked exactly from the numCandidates best by
+    // approximate distance. With numCandidates >= getNumRows() the result is the exact scan's.
+    public Match[] findBestMatches(double[] attributes, int k, int numCandidates) {
+        return WeightedIndex.toDistances(rerank(attributes, k, numCandidates).drainSorted());
+    }
+
+    // The same, as a heap of squared distances like WeightedIndex.scan()'s
+    MatchHeap rerank(double[] attributes, int k, int numCandidates) {
+        Match[] candidates = findCandidates(attributes, Math.max(k, numCandidates));
+        MatchHeap heap = new MatchHeap(Math.min(k, numRows));
+
+        for (Match candidate : candidates) {
+            int offset = candidate.getKanjiId() - 1;
+            double sum = 0;
+            for (int f = 0; f < numFeatures; f++) {
+                double diff = weights[f] * index.get(offset, f) - weights[f] * attributes[f];
+                sum += diff * diff;
+            }
+            heap.offer(candidate.getKanjiId(), sum);
+        }
+        return heap;
+    }
+
+    // The numCandidates best rows by approximate squared distance, best first (without re-ranking)
+    public Match[] findCandidates(double[] attributes, int numCandidates) {
+        MatchHeap heap = new MatchHeap(Math.min(numCandidates, numRows));
+        float[] query = new float[numFeatures], scales2 = new float[numFeatures];
+        float[] block = new float[WeightedIndex.BLOCK_ROWS];
+
+        // The query in the codes' units, so a row's distance is sum(scales[f]^2 * (code - query[f])^2). The sums
+        // are only used to pick candidates, so single precision does.
+        for (int f = 0; f < numFeatures; f++) {
+            query[f] = (float)((weights[f] * attributes[f] - offsets[f]) / scales[f]);
+            if (precision == Precision.INT8)
+                query[f] -= 128;
+            scales2[f] = (float)(scales[f] * scales[f]);
+        }
+
+        for (int start = 0; start < numRows; start += WeightedIndex.BLOCK_ROWS) {
+            int n = Math.min(WeightedIndex.BLOCK_ROWS, numRows - start);
+
+            for (int i = 0; i < n; i++)
+                block[i] = 0;
+            for (int f = 0; f < numFeatures; f++) {
+                if (precision == Precision.INT8)
+                    kernel.accumulate(bytes, f * numRows + start, query[f], scales2[f], block, n);
+                else
+                    kernel.accumulate(halves, f * numRows + start, query[f], scales2[f], block, n);
+            }
+            // Most rows can't make it into the heap, so they're turned away before it's asked (NaNs get through,
+            // as the heap ranks them itself)
+            double worst = heap.worstDistance();
+            for (int i = 0; i < n; i++) {
+                if (!(block[i] > worst) && heap.offer(start + i + 1, block[i]))
+                    worst = heap.worstDistance();
+            }
+        }
+        return heap.drainSorted();
+    }
+
+    // IEEE 754 half precision, rounding to nearest even (Float.floatToFloat16 only arrived in Java 20)
+    static short toHalf(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = ((bits >>> 23) & 0xFF) - 127 + 15;
+        int mantissa = bits & 0x7FFFFF;
+
+        if (((bits >>> 23) & 0xFF) == 0xFF) // Infinity or NaN
+            return (short)(sign | 0x7C00 | (mantissa != 0 ? 0x200 : 0));
+        if (exponent >= 0x1F)
+            return (short)(sign | 0x7C00);
+        if (exponent <= 0) {
+            // Subnormal (or too small for half precision at all)
+            if (exponent < -10)
+                return (short)sign;
+            mantissa |= 0x800000;
+            int shift = 14 - exponent;
+            int half = mantissa >> shift, rest = mantissa & ((1 << shift) - 1), halfway = 1 << (shift - 1);
+            if (rest > halfway || (rest == halfway && (half & 1) != 0))
+                half++;
+            return (short)(sign | half);
+        }
+        int half = (exponent << 10) | (mantissa >> 13), rest = mantissa & 0x1FFF;
+        if (rest > 0x1000 || (rest == 0x1000 && (half & 1) != 0))
+            half++; // A carry out of the mantissa correctly bumps the exponent
+        return (short)(sign | half);
+    }
+
+    // fromHalf() for the codes, which are finite and never negative: the half's bits moved into place as a float are
+    // its value times 2^-112 (subnormals included), so there's nothing to branch on
+    static float decodeNonNegative(short half) {
+        return Float.intBitsToFloat((half & 0x7FFF) << 13) * 0x1p112f;
+    }
+
+    static float fromHalf(short half) {
+        int bits = half & 0xFFFF;
+        int sign = (bits & 0x8000) << 16;
+        int exponent = (bits >>> 10) & 0x1F;
+        int mantissa = bits & 0x3FF;
+
+        if (exponent == 0x1F)
+            return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+        if (exponent == 0) {
+            float value = mantissa * 0x1p-24f;
+            return sign != 0 ? -value : value;
+        }
+        return Float.intBitsToFloat(sign | ((exponent + 112) << 23) | (mantissa << 13));
+    }
+
+    // Recall of the quantized paths against the exact scan. The queries are reference rows (up to MAX_QUERIES of them,
+    // picked at random) with a little noise added (a tenth of each feature's standard deviation), so they're near
+    // some rows without being copies of them.
+    public static void main(String[] args) {
+        String path = args.length > 0 ? args[0] : ReferenceIndex.DATA_PATH;
+
+        try {
+            ReferenceIndex index = ReferenceIndex.load(path);
+            double[][] queries = noisyQueries(index, new Random(42));
+            WeightedIndex exact = index.getWeighted();
+            int[] ks = {1, 10};
+            int[] candidates = {10, 20, 50, 100, 200};
+
+            System.out.println(index.getNumRows() + " rows, " + queries.length + " queries; float64 columns take "
+                    + (long)index.getNumRows() * index.getNumFeatures() * 8 + " bytes");
+            for (Precision precision : Precision.values()) {
+                QuantizedIndex quantized = new QuantizedIndex(index, Processor.WEIGHTS, precision);
+                System.out.println(precision + ": " + quantized.getCodeBytes() + " bytes");
+                for (int k : ks) {
+                    StringBuilder line = new StringBuilder(String.format("  recall@%-3d without re-ranking %6.2f%%",
+                            k, 100 * recall(exact, quantized, queries, k, -1)));
+                    for (int c : candidates) {
+                        if (c >= k)
+                            line.append(String.format(", %d candidates %6.2f%%", c,
+                                    100 * recall(exact, quantized, queries, k, c)));
+                    }
+                    System.out.println(line);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static double[][] noisyQueries(ReferenceIndex index, Random random) {
+        int numRows = index.getNumRows(), numFeatures = index.getNumFeatures();
+        double[] deviations = new double[numFeatures];
+        double[][] queries = new double[Math.min(numRows, MAX_QUERIES)][numFeatures];
+
+        for (int f = 0; f < numFeatures; f++) {
+            double sum = 0, sumOfSquares = 0;
+            for (int row = 0; row < numRows; row++) {
+                sum += index.get(row, f);
+                sumOfSquares += index.get(row, f) * index.get(row, f);
+            }
+            double mean = sum / Math.max(numRows, 1);
+            deviations[f] = Math.sqrt(Math.max(0, sumOfSquares / Math.max(numRows, 1) - mean * mean));
+        }
+        for (int q = 0; q < queries.length; q++) {
+            int row = queries.length == numRows ? q : random.nextInt(numRows);
+            for (int f = 0; f < numFeatures; f++)
+                queries[q][f] = index.get(row, f) + 0.1 * deviations[f] * random.nextGaussian();
+        }
+        return queries;
+    }
+
+    // The fraction of the exact top k that the quantized index also returns in its top k, over all the queries.
+    // numCandidates < 0 ranks by approximate distance alone.
+    private static double recall(WeightedIndex exact, QuantizedIndex quantized, double[][] queries, int k,
+                                 int numCandidates) {
+        long found = 0, total = 0;
+
+        for (double[] query : queries) {
+            HashSet<Integer> expected = new HashSet<Integer>();
+            for (Match match : exact.findBestMatchesSequential(query, k))
+                expected.add(match.getKanjiId());
+            Match[] matches = numCandidates < 0 ? quantized.findCandidates(query, k)
+                    : quantized.findBestMatches(query, k, numCandidates);
+            for (Match match : matches) {
+                if (expected.contains(match.getKanjiId()))
+                    found++;
+            }
+            total += expected.size();
+        }
+        return total == 0 ? 1 : (double)found / total;
+    }
+}
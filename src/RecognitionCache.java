@@ -0,0 +1,264 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+// Remembers the rankings of recent queries, so the same drawing (or the same glyph repeated on a page) is only
+// matched once. There are two levels:
+//
+//   1. keyed by the kanji's pixels cropped to their bounding box, plus where that box is in the image and the size
+//      of the image (several attributes depend on absolute coordinates, so the crop alone isn't enough). A hit here
+//      skips feature extraction as well as matching.
+//   2. keyed by the attribute vector, for different images that come out with the same attributes.
+//
+// Both hold MatchCursors, so every page of a ranking that has been looked at once is kept as well. Each level keeps
+// at most 'maxEntries' cursors, dropping the least recently used, and a cursor is dropped once it's older than
+// 'maxAgeMillis'. Everything is dropped when the ReferenceIndex changes (as after ReferenceIndex.reload()), since
+// the rankings were computed against the old one.
+//
+// The shared cache holds "kanji.cacheEntries" (1024) cursors per level for "kanji.cacheAgeSeconds" (600) seconds;
+// a size of 0 turns it off.
+public final class RecognitionCache {
+
+    private static final RecognitionCache SHARED = new RecognitionCache(Integer.getInteger("kanji.cacheEntries", 1024),
+            Long.getLong("kanji.cacheAgeSeconds", 600) * 1000);
+
+    private final int maxEntries;
+    private final long maxAgeNanos;
+    private final Level<Fingerprint> byImage = new Level<Fingerprint>();
+    private final Level<Attributes> byAttributes = new Level<Attributes>();
+    private ReferenceIndex index; // The index that the cached cursors belong to
+
+    private long imageHits, attributeHits, misses, evictions, invalidations;
+
+    public RecognitionCache(int maxEntries, long maxAgeMillis) {
+        if (maxEntries < 0 || maxAgeMillis < 0)
+            throw new IllegalArgumentException("maxEntries and maxAgeMillis must not be negative");
+        this.maxEntries = maxEntries;
+        this.maxAgeNanos = maxAgeMillis * 1000000;
+    }
+
+    public static RecognitionCache getShared() {
+        return SHARED;
+    }
+
+    // A cursor over the ranking for the processor's kanji, against the shared ReferenceIndex
+    public MatchCursor getMatchCursor(Processor p, int pageSize) throws IOException {
+        return getMatchCursor(ReferenceIndex.getShared(), p, pageSize);
+    }
+
+    // The same against a given index. Asking for a different index than last time empties the cache.
+    public MatchCursor getMatchCursor(ReferenceIndex current, Processor p, int pageSize) {
+        Fingerprint fingerprint = new Fingerprint(p.image, pageSize);
+        MatchCursor cursor = lookupImage(current, fingerprint);
+
+        return cursor != null ? cursor : lookupAttributes(current, fingerprint, Processor.toArray(p.getAttributes()));
+    }
+
+    // The same for an image from workspace.binarize(), without a Processor of its own: the attributes are only
+    // extracted (through the workspace) if the image isn't cached, and the cache keeps a cropped copy of it, never
+    // the image itself
+    public MatchCursor getMatchCursor(ReferenceIndex current, BitImage image, ExtractionWorkspace workspace,
+                                      int pageSize) {
+        Fingerprint fingerprint = new Fingerprint(image, pageSize);
+        MatchCursor cursor = lookupImage(current, fingerprint);
+
+        return cursor != null ? cursor
+                : lookupAttributes(current, fingerprint, workspace.extract(image, false,
+                        new double[Processor.WEIGHTS.length]));
+    }
+
+    // The k best matches for the processor's kanji, best first
+    public Match[] findBestMatches(ReferenceIndex current, Processor p, int k) {
+        return getMatchCursor(current, p, k).getPage(0);
+    }
+
+    public Match[] findBestMatches(ReferenceIndex current, BitImage image, ExtractionWorkspace workspace, int k) {
+        return getMatchCursor(current, image, workspace, k).getPage(0);
+    }
+
+    // Level 1, or null on a miss
+    private synchronized MatchCursor lookupImage(ReferenceIndex current, Fingerprint fingerprint) {
+        checkIndex(current);
+        MatchCursor cursor = byImage.lookup(fingerprint);
+        if (cursor != null)
+            imageHits++;
+        return cursor;
+    }
+
+    // Level 2, matching the attributes on a miss; either way the cursor is stored at level 1 as well
+    private synchronized MatchCursor lookupAttributes(ReferenceIndex current, Fingerprint fingerprint,
+                                                      double[] values) {
+        Attributes attributes = new Attributes(values, fingerprint.pageSize);
+
+        checkIndex(current);
+        MatchCursor cursor = byAttributes.lookup(attributes);
+        if (cursor != null) {
+            attributeHits++;
+        } else {
+            misses++;
+            cursor = current.cursor(values, fingerprint.pageSize);
+            byAttributes.store(attributes, cursor);
+        }
+        byImage.store(fingerprint, cursor);
+        return cursor;
+    }
+
+    public synchronized void invalidate() {
+        byImage.clear();
+        byAttributes.clear();
+        invalidations++;
+    }
+
+    private void checkIndex(ReferenceIndex current) {
+        if (index != current) {
+            if (index != null)
+                invalidate();
+            index = current;
+        }
+    }
+
+    public synchronized long getImageHits() {
+        return imageHits;
+    }
+
+    public synchronized long getAttributeHits() {
+        return attributeHits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    // The fraction of lookups answered from either level
+    public synchronized double getHitRate() {
+        long lookups = imageHits + attributeHits + misses;
+        return lookups == 0 ? 0 : (double)(imageHits + attributeHits) / lookups;
+    }
+
+    public synchronized String[] getStatistics() {
+        return new String[] {
+            String.format("cache: %d image hits, %d attribute hits, %d misses (hit rate %.1f%%)", imageHits,
+                    attributeHits, misses, 100 * getHitRate()),
+            String.format("cache: %d + %d entries, %d evicted, %d invalidations", byImage.size(),
+                    byAttributes.size(), evictions, invalidations)
+        };
+    }
+
+    // One level of the cache: least recently used first, each entry stamped with when it was stored
+    private class Level<K> {
+        private final LinkedHashMap<K, Entry> entries = new LinkedHashMap<K, Entry>(16, 0.75f, true);
+
+        MatchCursor lookup(K key) {
+            Entry entry = entries.get(key);
+            if (entry == null)
+                return null;
+            if (System.nanoTime() - entry.stored > maxAgeNanos) {
+                entries.remove(key);
+                evictions++;
+                return null;
+            }
+            return entry.cursor;
+        }
+
+        void store(K key, MatchCursor cursor) {
+            if (maxEntries == 0)
+                return;
+            entries.put(key, new Entry(cursor));
+
+            // Drop the least recently used entries beyond 'maxEntries', and any that have aged out as soon as they
+            // reach that end
+            long now = System.nanoTime();
+            for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+                Entry eldest = it.next();
+                if (entries.size() <= maxEntries && now - eldest.stored <= maxAgeNanos)
+                    break;
+                it.remove();
+                evictions++;
+            }
+        }
+
+        int size() {
+            return entries.size();
+        }
+
+        void clear() {
+            entries.clear();
+        }
+    }
+
+    private static class Entry {
+        final MatchCursor cursor;
+        final long stored = System.nanoTime();
+
+        Entry(MatchCursor cursor) {
+            this.cursor = cursor;
+        }
+    }
+
+    // Level 1 key: the cropped kanji and where it was. The bounding box is found the way Processor finds it.
+    private static class Fingerprint {
+        final BitImage crop;
+        final int width, height, minX, minY, pageSize;
+        final int hash;
+
+        Fingerprint(BitImage image, int pageSize) {
+            int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = 0, maxY = 0;
+
+            for (int y = 0; y < image.getHeight(); y++) {
+                int first = image.firstInRow(y);
+                if (first == -1)
+                    continue;
+                minY = Math.min(minY, y);
+                maxY = y;
+                minX = Math.min(minX, first);
+                maxX = Math.max(maxX, image.lastInRow(y));
+            }
+            crop = maxY < minY ? new BitImage(0, 0) : image.crop(minY, minX, maxY, maxX);
+            width = image.getWidth();
+            height = image.getHeight();
+            this.minX = minX;
+            this.minY = minY;
+            this.pageSize = pageSize;
+            hash = Arrays.hashCode(new int[] {crop.hashCode(), width, height, minX, minY, pageSize});
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Fingerprint))
+                return false;
+            Fingerprint other = (Fingerprint)o;
+            return hash == other.hash && width == other.width && height == other.height && minX == other.minX
+                    && minY == other.minY && pageSize == other.pageSize && crop.equals(other.crop);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    // Level 2 key: the attribute vector, compared bit for bit
+    private static class Attributes {
+        final double[] values;
+        final int pageSize;
+
+        Attributes(double[] values, int pageSize) {
+            this.values = values;
+            this.pageSize = pageSize;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Attributes))
+                return false;
+            Attributes other = (Attributes)o;
+            return pageSize == other.pageSize && Arrays.equals(values, other.values);
+        }
+
+        public int hashCode() {
+            return 31 * Arrays.hashCode(values) + pageSize;
+        }
+    }
+}
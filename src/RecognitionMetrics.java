@@ -0,0 +1,166 @@
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Timers and counters for each stage of recognition. Collection is off by default: while disabled, every hook in
+// the pipeline costs one read of a volatile boolean and nothing is recorded. Turn it on with setEnabled(true), or
+// through JMX after calling registerMBean(), and add a MetricsListener to receive the individual measurements.
+//
+// The hooks are used like this:
+//
+//     long start = RecognitionMetrics.start();
+//     ... do the work ...
+//     RecognitionMetrics.stop(RecognitionMetrics.Stage.BINARIZE, start);
+public final class RecognitionMetrics implements RecognitionMetricsMBean {
+
+    public enum Stage {
+        BINARIZE,             // Processor constructor: reading the image into a BitImage
+        INTEGRAL_IMAGE,       // Building the summed-area tables
+        COMPONENT_LABELING,   // ComponentLabeler: every component count (and enclosed regions) in one pass
+        COMPONENTS_BFS,       // Processor.getComponents()
+        ENCLOSED_REGIONS_BFS, // Processor.getEnclosedRegions(), including both inversions
+        DISTANCE_SCAN,        // Comparing a query with the reference rows
+        QUERY                 // A whole recognition, from the image to the best matches
+    }
+
+    public enum Counter {
+        IMAGES_PROCESSED,
+        PIXELS_SCANNED,
+        REFERENCE_ROWS_COMPARED
+    }
+
+    static final String OBJECT_NAME = "kanji:type=RecognitionMetrics";
+
+    private static final RecognitionMetrics INSTANCE = new RecognitionMetrics();
+
+    private static volatile boolean enabled;
+
+    private final LatencyHistogram[] stages = new LatencyHistogram[Stage.values().length];
+    private final AtomicLongArray counters = new AtomicLongArray(Counter.values().length);
+    private final AtomicLong bfsQueuePeak = new AtomicLong();
+    private final CopyOnWriteArrayList<MetricsListener> listeners = new CopyOnWriteArrayList<MetricsListener>();
+
+    private RecognitionMetrics() {
+        for (int i = 0; i < stages.length; i++)
+            stages[i] = new LatencyHistogram();
+    }
+
+    public static RecognitionMetrics get() {
+        return INSTANCE;
+    }
+
+    public static void registerMBean() throws JMException {
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name))
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, name);
+    }
+
+    public static boolean enabled() {
+        return enabled;
+    }
+
+    // The start time to pass to stop(), or 0 when metrics are disabled
+    public static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    public static void stop(Stage stage, long start) {
+        if (start != 0 && enabled) {
+            long nanos = System.nanoTime() - start;
+            INSTANCE.stages[stage.ordinal()].record(nanos);
+            for (MetricsListener listener : INSTANCE.listeners)
+                listener.stageCompleted(stage, nanos);
+        }
+    }
+
+    public static void count(Counter counter, long delta) {
+        if (enabled) {
+            INSTANCE.counters.addAndGet(counter.ordinal(), delta);
+            for (MetricsListener listener : INSTANCE.listeners)
+                listener.counterIncreased(counter, delta);
+        }
+    }
+
+    // Record the largest size a BFS queue reached
+    public static void bfsQueueSize(long size) {
+        if (enabled) {
+            long peak;
+            while (size > (peak = INSTANCE.bfsQueuePeak.get()) && !INSTANCE.bfsQueuePeak.compareAndSet(peak, size));
+        }
+    }
+
+    public void addListener(MetricsListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(MetricsListener listener) {
+        listeners.remove(listener);
+    }
+
+    public LatencyHistogram getStage(Stage stage) {
+        return stages[stage.ordinal()];
+    }
+
+    public long getCounter(Counter counter) {
+        return counters.get(counter.ordinal());
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        RecognitionMetrics.enabled = enabled;
+    }
+
+    public void reset() {
+        for (LatencyHistogram stage : stages)
+            stage.reset();
+        for (int i = 0; i < counters.length(); i++)
+            counters.set(i, 0);
+        bfsQueuePeak.set(0);
+    }
+
+    public long getImagesProcessed() {
+        return getCounter(Counter.IMAGES_PROCESSED);
+    }
+
+    public long getPixelsScanned() {
+        return getCounter(Counter.PIXELS_SCANNED);
+    }
+
+    public long getBfsQueuePeak() {
+        return bfsQueuePeak.get();
+    }
+
+    public long getReferenceRowsCompared() {
+        return getCounter(Counter.REFERENCE_ROWS_COMPARED);
+    }
+
+    public long getQueryCount() {
+        return getStage(Stage.QUERY).getCount();
+    }
+
+    public double getQueryLatencyP50Millis() {
+        return getStage(Stage.QUERY).getPercentileNanos(50) / 1e6;
+    }
+
+    public double getQueryLatencyP99Millis() {
+        return getStage(Stage.QUERY).getPercentileNanos(99) / 1e6;
+    }
+
+    public String[] getStageLatencies() {
+        String[] lines = new String[stages.length];
+
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram h = getStage(stage);
+            lines[stage.ordinal()] = String.format("%s: count=%d mean=%.3fms p50=%.3fms p99=%.3fms", stage,
+                    h.getCount(), h.getMeanNanos() / 1e6, h.getPercentileNanos(50) / 1e6,
+                    h.getPercentileNanos(99) / 1e6);
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,26 @@
+// The JMX view of RecognitionMetrics, registered as "kanji:type=RecognitionMetrics"
+public interface RecognitionMetricsMBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    void reset();
+
+    long getImagesProcessed();
+
+    long getPixelsScanned();
+
+    long getBfsQueuePeak();
+
+    long getReferenceRowsCompared();
+
+    long getQueryCount();
+
+    double getQueryLatencyP50Millis();
+
+    double getQueryLatencyP99Millis();
+
+    // One line per stage: count, mean, p50 and p99
+    String[] getStageLatencies();
+}
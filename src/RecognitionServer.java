@@ -0,0 +1,443 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Serves kanji lookups over HTTP on the loopback interface, without the GUI.
+//
+//   POST /recognize[?top=k]                  body: a PNG or GIF (anything ImageIO reads)
+//   POST /recognize?width=w&height=h[&top=k] body: w * h bytes of 8-bit gray, row by row (0 is black)
+//   GET  /stats                              counters, as JSON
+//   GET  /health
+//
+// A lookup answers with the same JSON as a line of BatchRecognizer's output. Each request's image is processed on
+// its own handler thread (a virtual thread where the JVM has them, otherwise a thread from a fixed pool). The
+// attributes then go onto a queue, and a single batching thread takes up to 'maxBatch' of them at a time, waiting at
+// most 'batchWaitMillis' after the first for others to arrive, and matches the whole batch in one pass over the
+// shared reference index (see WeightedIndex.scanBatch(), or QuantizedIndex when "kanji.quantize" is set). At most
+// 'maxInFlight' requests are processed at once and at most 'queueSize' wait to be matched; past either limit a
+// request is turned away at once with a 503.
+//
+// Usage: RecognitionServer [--port n] [--max-batch n] [--batch-wait-ms n] [--queue n] [--max-in-flight n]
+//                          [--threads n] [--top k] [--metrics] [--normalize]
+// where --normalize crops and scales every image to a fixed size first, so large images cost no more than small ones
+// (see Normalizer).
+public class RecognitionServer {
+
+    private static final int MAX_BODY_BYTES = 16 * 1024 * 1024;
+    private static final int MAX_TOP = 1000;
+
+    private final HttpServer server;
+    private final ExecutorService handlers;
+    private final Semaphore inFlight;
+    private final ExtractionWorkspace.Pool workspaces; // One per in-flight request at most, kept between requests
+    private final BlockingQueue<Pending> queue;
+    private final Thread batcher;
+    private final int maxBatch;
+    private final long batchWaitNanos;
+    private final int defaultTop;
+    private final String kanjiStr;
+    private volatile boolean normalize;
+    private volatile boolean running = true;
+
+    private final AtomicLong numRequests = new AtomicLong(), numShed = new AtomicLong();
+    private final AtomicLong numBatches = new AtomicLong(), numBatched = new AtomicLong();
+
+    public RecognitionServer(int port, int maxBatch, long batchWaitMillis, int queueSize, int maxInFlight,
+                             int numThreads, int defaultTop, String kanjiStr) throws IOException {
+        if (maxBatch <= 0 || batchWaitMillis < 0 || queueSize <= 0 || maxInFlight <= 0 || numThreads <= 0
+                || defaultTop <= 0)
+            throw new IllegalArgumentException("Batch, queue, thread and result limits must be positive");
+        this.maxBatch = maxBatch;
+        this.batchWaitNanos = TimeUnit.MILLISECONDS.toNanos(batchWaitMillis);
+        this.defaultTop = defaultTop;
+        this.kanjiStr = kanjiStr;
+        inFlight = new Semaphore(maxInFlight);
+        workspaces = new ExtractionWorkspace.Pool(maxInFlight);
+        queue = new ArrayBlockingQueue<Pending>(queueSize);
+        handlers = newHandlerExecutor(numThreads);
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.setExecutor(handlers);
+        server.createContext("/recognize", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                recognize(exchange);
+            }
+        });
+        server.createContext("/stats", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                send(exchange, 200, "{\"requests\":" + numRequests.get() + ",\"shed\":" + numShed.get()
+                        + ",\"batches\":" + numBatches.get() + ",\"batchedQueries\":" + numBatched.get()
+                        + ",\"queued\":" + queue.size() + "}\n");
+            }
+        });
+        server.createContext("/health", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                send(exchange, 200, "{\"status\":\"ok\"}\n");
+            }
+        });
+
+        batcher = new Thread(new Runnable() {
+            public void run() {
+                runBatches();
+            }
+        }, "recognition-batcher");
+        batcher.setDaemon(true);
+    }
+
+    // Whether images go through a Normalizer before their features are extracted
+    public void setNormalize(boolean normalize) {
+        this.normalize = normalize;
+    }
+
+    public void start() {
+        batcher.start();
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    // Stop accepting requests, give those in progress up to 'delaySeconds' to finish, and fail whatever is left
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        running = false;
+        batcher.interrupt();
+        handlers.shutdownNow();
+        for (Pending pending = queue.poll(); pending != null; pending = queue.poll())
+            pending.result.completeExceptionally(new IOException("server stopped"));
+    }
+
+    // Virtual threads are looked up reflectively, so this still compiles and runs on JVMs without them
+    private static ExecutorService newHandlerExecutor(int numThreads) {
+        try {
+            return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            final AtomicInteger next = new AtomicInteger();
+            return Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "recognition-" + next.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    private void recognize(HttpExchange exchange) throws IOException {
+        numRequests.incrementAndGet();
+        if (!exchange.getRequestMethod().equals("POST")) {
+            send(exchange, 405, "{\"error\":\"use POST\"}\n");
+            return;
+        }
+        if (!inFlight.tryAcquire()) {
+            shed(exchange);
+            return;
+        }
+
+        try {
+            HashMap<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+            int top = params.containsKey("top") ? Integer.parseInt(params.get("top")) : defaultTop;
+            if (top <= 0 || top > MAX_TOP)
+                throw new IllegalArgumentException("top must be between 1 and " + MAX_TOP);
+            byte[] body = readBody(exchange.getRequestBody());
+            if (body == null) {
+                send(exchange, 413, "{\"error\":\"image too large\"}\n");
+                return;
+            }
+            BufferedImage img = params.containsKey("width")
+                    ? rawBitmap(body, Integer.parseInt(params.get("width")), Integer.parseInt(params.get("height")))
+                    : ImageIO.read(new ByteArrayInputStream(body));
+            if (img == null) {
+                send(exchange, 415, "{\"error\":\"unsupported image format\"}\n");
+                return;
+            }
+
+            long start = RecognitionMetrics.start();
+            double[] attributes;
+            ExtractionWorkspace workspace = workspaces.take();
+            try {
+                attributes = workspace.extract(img, normalize, new double[Processor.WEIGHTS.length]);
+            } finally {
+                workspaces.release(workspace);
+            }
+            Pending pending = new Pending(attributes, top);
+            if (!queue.offer(pending)) {
+                shed(exchange);
+                return;
+            }
+            Match[] matches = pending.result.get();
+            RecognitionMetrics.stop(RecognitionMetrics.Stage.QUERY, start);
+            send(exchange, 200, toJson(matches));
+        } catch (IllegalArgumentException e) {
+            send(exchange, 400, "{\"error\":" + BatchRecognizer.jsonString(String.valueOf(e.getMessage())) + "}\n");
+        } catch (IOException e) {
+            // A body that couldn't be read or decoded. If the response was already under way, the client has gone.
+            if (exchange.getResponseCode() != -1)
+                throw e;
+            send(exchange, 400, "{\"error\":" + BatchRecognizer.jsonString("unreadable image: " + e.getMessage())
+                    + "}\n");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            send(exchange, 503, "{\"error\":\"server stopping\"}\n");
+        } catch (ExecutionException e) {
+            send(exchange, 500, "{\"error\":" + BatchRecognizer.jsonString(e.getCause().toString()) + "}\n");
+        } catch (RuntimeException e) { // A bug in extraction shouldn't take the connection down without an answer
+            if (exchange.getResponseCode() != -1)
+                throw e;
+            send(exchange, 500, "{\"error\":" + BatchRecognizer.jsonString(e.toString()) + "}\n");
+        } finally {
+            inFlight.release();
+        }
+    }
+
+    private void shed(HttpExchange exchange) throws IOException {
+        numShed.incrementAndGet();
+        exchange.getResponseHeaders().set("Retry-After", "1");
+        send(exchange, 503, "{\"error\":\"overloaded\"}\n");
+    }
+
+    // Take batches off the queue until the server is stopped. A batch is closed when it's full or when the oldest
+    // request in it has waited 'batchWaitNanos', whichever comes first.
+    private void runBatches() {
+        ArrayList<Pending> batch = new ArrayList<Pending>();
+
+        while (running) {
+            try {
+                Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+                long deadline = first.enqueued + batchWaitNanos;
+                while (batch.size() < maxBatch) {
+                    long remaining = deadline - System.nanoTime();
+                    Pending next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null)
+                        break;
+                    batch.add(next);
+                }
+                match(batch);
+            } catch (InterruptedException e) {
+                running = false;
+            } finally {
+                for (Pending pending : batch)
+                    pending.result.completeExceptionally(new IOException("server stopped"));
+                batch.clear();
+            }
+        }
+    }
+
+    private void match(ArrayList<Pending> batch) {
+        double[][] attributes = new double[batch.size()][];
+        int[] k = new int[batch.size()];
+        long start = RecognitionMetrics.start();
+
+        for (int i = 0; i < batch.size(); i++) {
+            attributes[i] = batch.get(i).attributes;
+            k[i] = batch.get(i).k;
+        }
+        try {
+            ReferenceIndex index = ReferenceIndex.getShared();
+            Match[][] matches = index.findBestMatches(attributes, k);
+            RecognitionMetrics.stop(RecognitionMetrics.Stage.DISTANCE_SCAN, start);
+            RecognitionMetrics.count(RecognitionMetrics.Counter.REFERENCE_ROWS_COMPARED,
+                    (long)index.getNumRows() * batch.size());
+            for (int i = 0; i < batch.size(); i++)
+                batch.get(i).result.complete(matches[i]);
+        } catch (Exception e) {
+            for (Pending pending : batch)
+                pending.result.completeExceptionally(e);
+        }
+        numBatches.incrementAndGet();
+        numBatched.addAndGet(batch.size());
+    }
+
+    private String toJson(Match[] matches) {
+        StringBuilder json = new StringBuilder("{\"matches\":[");
+
+        for (int i = 0; i < matches.length; i++) {
+            Match match = matches[i];
+            String kanji = match.getKanjiId() <= kanjiStr.length() ? kanjiStr.charAt(match.getKanjiId() - 1) + "" : "";
+            json.append(i == 0 ? "" : ",").append("{\"id\":").append(match.getKanjiId())
+                    .append(",\"kanji\":").append(BatchRecognizer.jsonString(kanji))
+                    .append(",\"distance\":").append(BatchRecognizer.jsonNumber(match.getDistance())).append("}");
+        }
+        return json.append("]}\n").toString();
+    }
+
+    // A raw 8-bit gray bitmap as an image the Processor can read
+    private static BufferedImage rawBitmap(byte[] pixels, int width, int height) {
+        if (width <= 0 || height <= 0 || (long)width * height != pixels.length)
+            throw new IllegalArgumentException("expected " + width + " x " + height + " bytes, got " + pixels.length);
+        // Not TYPE_BYTE_GRAY: its getRGB() treats the values as linear and converts them to sRGB (240 reads back as
+        // 248), which would move raw values just below Processor.INK_THRESHOLD over it. Each value is copied into
+        // all three channels instead, so getRGB() returns it unchanged.
+        int[] rgb = new int[pixels.length];
+        for (int i = 0; i < rgb.length; i++)
+            rgb[i] = (pixels[i] & 0xff) * 0x010101;
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        img.getRaster().setDataElements(0, 0, width, height, rgb);
+        return img;
+    }
+
+    // The whole body, or null if it's over MAX_BODY_BYTES
+    private static byte[] readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+
+        try {
+            for (int n = in.read(buffer); n != -1; n = in.read(buffer)) {
+                if (body.size() + n > MAX_BODY_BYTES)
+                    return null;
+                body.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return body.toByteArray();
+    }
+
+    private static HashMap<String, String> parseQuery(String query) {
+        HashMap<String, String> params = new HashMap<String, String>();
+
+        if (query == null)
+            return params;
+        for (String param : query.split("&")) {
+            int eq = param.indexOf('=');
+            if (eq > 0)
+                params.put(param.substring(0, eq), param.substring(eq + 1));
+        }
+        return params;
+    }
+
+    private static void send(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes("utf-8");
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static class Pending {
+        final double[] attributes;
+        final int k;
+        final long enqueued = System.nanoTime();
+        final CompletableFuture<Match[]> result = new CompletableFuture<Match[]>();
+
+        Pending(double[] attributes, int k) {
+            this.attributes = attributes;
+            this.k = k;
+        }
+    }
+
+    public static void main(String[] args) {
+        int port = 8035, maxBatch = 32, queueSize = 256, maxInFlight = 64, top = 10;
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        long batchWaitMillis = 2;
+        boolean metrics = false, normalize = false;
+
+        // A bad value for any option is a usage error, like an unknown option
+        String error = null;
+        int i = 0;
+        try {
+            for (; i < args.length; i++) {
+                if (args[i].equals("--port") && i + 1 < args.length)
+                    port = Integer.parseInt(args[++i]);
+                else if (args[i].equals("--max-batch") && i + 1 < args.length)
+                    maxBatch = Integer.parseInt(args[++i]);
+                else if (args[i].equals("--batch-wait-ms") && i + 1 < args.length)
+                    batchWaitMillis = Long.parseLong(args[++i]);
+                else if (args[i].equals("--queue") && i + 1 < args.length)
+                    queueSize = Integer.parseInt(args[++i]);
+                else if (args[i].equals("--max-in-flight") && i + 1 < args.length)
+                    maxInFlight = Integer.parseInt(args[++i]);
+                else if (args[i].equals("--threads") && i + 1 < args.length)
+                    numThreads = Integer.parseInt(args[++i]);
+                else if (args[i].equals("--top") && i + 1 < args.length)
+                    top = Integer.parseInt(args[++i]);
+                else if (args[i].equals("--metrics"))
+                    metrics = true;
+                else if (args[i].equals("--normalize"))
+                    normalize = true;
+                else {
+                    error = "Unknown option: " + args[i];
+                    break;
+                }
+            }
+            if (error == null && (port < 0 || port > 65535))
+                error = "--port must be between 0 and 65535";
+            else if (error == null && batchWaitMillis < 0)
+                error = "--batch-wait-ms can't be negative";
+            else if (error == null && (maxBatch < 1 || queueSize < 1 || maxInFlight < 1 || numThreads < 1 || top < 1))
+                error = "--max-batch, --queue, --max-in-flight, --threads and --top must be at least 1";
+        } catch (IllegalArgumentException e) { // From parseInt() or parseLong(), after 'i' moved on to the value
+            error = "Bad value for " + args[i - 1] + ": " + args[i];
+        }
+        if (error != null) {
+            System.err.println(error);
+            System.err.println("Usage: RecognitionServer [--port n] [--max-batch n] [--batch-wait-ms n] "
+                    + "[--queue n] [--max-in-flight n] [--threads n] [--top k] [--metrics] [--normalize]");
+            System.exit(2);
+        }
+
+        RecognitionMetrics.get().setEnabled(metrics);
+        try {
+            String kanjiStr = "";
+            try {
+                BufferedReader br = new BufferedReader(new InputStreamReader(
+                        new FileInputStream(BatchRecognizer.KANJI_LIST_PATH), "utf-8"));
+                kanjiStr = br.readLine();
+                br.close();
+            } catch (IOException e) {
+                System.err.println("No kanji list, answering with IDs only: " + e);
+            }
+            ReferenceIndex.getShared();
+            RecognitionMetrics.registerMBean();
+
+            final RecognitionServer server = new RecognitionServer(port, maxBatch, batchWaitMillis, queueSize,
+                    maxInFlight, numThreads, top, kanjiStr == null ? "" : kanjiStr);
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                public void run() {
+                    server.stop(1);
+                }
+            }));
+            server.setNormalize(normalize);
+            server.start();
+            System.out.println("Listening on http://127.0.0.1:" + server.getPort() + "/recognize");
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
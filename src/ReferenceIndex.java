@@ -0,0 +1,273 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+
+// An immutable copy of the reference attributes in 'data.txt', one row per kanji (row i holding the (i+1)'th kanji of
+// kanjilist.txt), so a query is a plain scan over primitive values rather than a pass over the file. The values are
+// kept feature by feature (column-major: every row's value of feature 0, then of feature 1, ...) in one little-endian
+// buffer of float64s, or float32s for a single-precision feature store. That's the layout of a FeatureStore's payload,
+// so an index read from one is backed by the mapped file itself, and the layout WeightedIndex scans, so that scans it
+// in place too. A single index is shared by every Processor (see getShared()); reload() swaps in a fresh one in one
+// step, so queries already running keep the old one.
+public final class ReferenceIndex {
+
+    static final String DATA_PATH = "/home/joey/IdeaProjects/Kanji Detection/resources/data.txt";
+
+    private static volatile ReferenceIndex shared;
+
+    private final ByteBuffer values;
+    private final boolean singlePrecision;
+    private final int numRows;
+    private final int numFeatures;
+    private volatile WeightedIndex weighted;
+    private volatile CascadeMatcher cascade;
+    private volatile QuantizedIndex quantized;
+    private final QuantizedIndex.Precision quantize; // From "kanji.quantize" when the index was made, or null
+    private final int quantizedCandidates;
+
+    // From row-major attributes: data[row * numFeatures + feature]
+    public ReferenceIndex(double[] data, int numRows, int numFeatures) {
+        this(transpose(data, numRows, numFeatures), false, numRows, numFeatures);
+    }
+
+    // From column-major values as described above
+    ReferenceIndex(ByteBuffer values, boolean singlePrecision, int numRows, int numFeatures) {
+        if (numFeatures > Processor.WEIGHTS.length
+                || values.capacity() != (long)numRows * numFeatures * (singlePrecision ? 4 : 8))
+            throw new IllegalArgumentException("Expected " + numRows + " rows of at most "
+                    + Processor.WEIGHTS.length + " attributes, got " + values.capacity() + " bytes");
+        this.values = values.order(ByteOrder.LITTLE_ENDIAN);
+        this.singlePrecision = singlePrecision;
+        this.numRows = numRows;
+        this.numFeatures = numFeatures;
+        quantize = QuantizedIndex.configuredPrecision();
+        quantizedCandidates = QuantizedIndex.configuredCandidates();
+    }
+
+    private static ByteBuffer transpose(double[] data, int numRows, int numFeatures) {
+        if (data.length != numRows * numFeatures || (long)data.length * 8 > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Expected " + numRows + " rows of " + numFeatures + " attributes, got "
+                    + data.length + " values");
+        ByteBuffer values = ByteBuffer.allocate(data.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+
+        for (int row = 0; row < numRows; row++) {
+            for (int i = 0; i < numFeatures; i++)
+                values.putDouble((i * numRows + row) * 8, data[row * numFeatures + i]);
+        }
+        return values;
+    }
+
+    // Load either a binary feature store (see FeatureStore) or a 'data.txt'-style file: one line of space-separated
+    // attributes per kanji
+    public static ReferenceIndex load(String path) throws IOException {
+        if (FeatureStore.isFeatureStore(path))
+            return FeatureStore.read(path);
+
+        BufferedReader br = new BufferedReader(new FileReader(path));
+        try {
+            return parse(path, br);
+        } finally {
+            br.close();
+        }
+    }
+
+    // The same from text in the 'data.txt' format, read from 'br'. 'source' names it in error messages.
+    static ReferenceIndex parse(String source, BufferedReader br) throws IOException {
+        ArrayList<double[]> rows = new ArrayList<double[]>();
+        int numFeatures = -1;
+
+        try {
+            String line;
+            for (int count = 1; (line = br.readLine()) != null; count++) {
+                String[] attributesStr = line.trim().split(" +");
+                if (numFeatures == -1)
+                    numFeatures = attributesStr.length;
+                if (attributesStr.length != numFeatures)
+                    throw new IOException(source + ":" + count + ": expected " + numFeatures + " attributes, found "
+                            + attributesStr.length);
+
+                double[] row = new double[numFeatures];
+                for (int i = 0; i < numFeatures; i++)
+                    row[i] = Double.parseDouble(attributesStr[i]);
+                rows.add(row);
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException(source + ": " + e.getMessage(), e);
+        }
+
+        numFeatures = Math.max(numFeatures, 0);
+        double[] data = new double[rows.size() * numFeatures];
+        for (int row = 0; row < rows.size(); row++)
+            System.arraycopy(rows.get(row), 0, data, row * numFeatures, numFeatures);
+        return new ReferenceIndex(data, rows.size(), numFeatures);
+    }
+
+    // The index used by every Processor. It's loaded the first time it's asked for (see loadDefault()).
+    public static ReferenceIndex getShared() throws IOException {
+        ReferenceIndex index = shared;
+        if (index == null) {
+            synchronized (ReferenceIndex.class) {
+                if (shared == null)
+                    shared = loadDefault();
+                index = shared;
+            }
+        }
+        return index;
+    }
+
+    // Re-read the reference data and publish the result. If it can't be read the current index stays in place.
+    public static ReferenceIndex reload() throws IOException {
+        ReferenceIndex index = loadDefault();
+        setShared(index);
+        return index;
+    }
+
+    // The binary feature store if there is one, and 'data.txt' otherwise. A store that can't be read (one in an older
+    // format, say) is reported and passed over for 'data.txt', rather than failing every lookup until it's rebuilt.
+    static ReferenceIndex loadDefault() throws IOException {
+        if (new File(FeatureStore.BINARY_PATH).exists()) {
+            try {
+                return FeatureStore.read(FeatureStore.BINARY_PATH);
+            } catch (IOException e) {
+                System.err.println("Ignoring the feature store (" + e.getMessage() + "), reading " + DATA_PATH);
+            }
+        }
+        return load(DATA_PATH);
+    }
+
+    public static ReferenceIndex reload(String path) throws IOException {
+        ReferenceIndex index = load(path);
+        setShared(index);
+        return index;
+    }
+
+    public static void setShared(ReferenceIndex index) {
+        synchronized (ReferenceIndex.class) {
+            shared = index;
+        }
+    }
+
+    public int getNumRows() {
+        return numRows;
+    }
+
+    public int getNumFeatures() {
+        return numFeatures;
+    }
+
+    public double get(int row, int feature) {
+        int i = feature * numRows + row;
+        return singlePrecision ? values.getFloat(i * 4) : values.getDouble(i * 8);
+    }
+
+    // The values in the layout described above, for WeightedIndex to scan. Only ever read with absolute gets.
+    ByteBuffer getValues() {
+        return values;
+    }
+
+    boolean isSinglePrecision() {
+        return singlePrecision;
+    }
+
+    // Weighted euclidean distance between the given attributes and those of the kanji in 'row'
+    public double distance(int row, double[] attributes) {
+        double distance = 0;
+        double diff;
+
+        for (int i = 0; i < numFeatures; i++) {
+            diff = Processor.WEIGHTS[i] * (get(row, i) - attributes[i]);
+            distance += diff * diff;
+        }
+        return Math.sqrt(distance);
+    }
+
+    // The rows weighted by Processor.WEIGHTS, which is what queries are actually run against. It's made the first
+    // time it's needed; making it twice in a race is harmless since the result is the same.
+    public WeightedIndex getWeighted() {
+        WeightedIndex w = weighted;
+        if (w == null)
+            weighted = w = new WeightedIndex(this, Processor.WEIGHTS);
+        return w;
+    }
+
+    // The rows bucketed for a CascadeMatcher, built the same way as getWeighted()
+    public CascadeMatcher getCascade() {
+        CascadeMatcher c = cascade;
+        if (c == null)
+            cascade = c = new CascadeMatcher(this, Processor.WEIGHTS);
+        return c;
+    }
+
+    // The rows quantized to the precision "kanji.quantize" named when this index was made (see QuantizedIndex), or
+    // null if it wasn't set. A new value takes effect with the next index, e.g. after reload(). Built the same way as
+    // getWeighted().
+    public QuantizedIndex getQuantized() {
+        if (quantize == null)
+            return null;
+        QuantizedIndex q = quantized;
+        if (q == null)
+            quantized = q = new QuantizedIndex(this, Processor.WEIGHTS, quantize);
+        return q;
+    }
+
+    // The quantized index for a top-k query, or null if the query should be an exact scan: quantizing is off, or k
+    // covers every row, so there would be nothing to leave out
+    QuantizedIndex getQuantized(int k) {
+        return k < numRows ? getQuantized() : null;
+    }
+
+    // The number of candidates a quantized query re-ranks ("kanji.quantizedCandidates")
+    int getQuantizedCandidates() {
+        return quantizedCandidates;
+    }
+
+    // The k kanji closest to the given attributes, best first
+    public Match[] findBestMatches(double[] attributes, int k) {
+        long start = RecognitionMetrics.start();
+        QuantizedIndex q = getQuantized(k);
+        Match[] matches = q != null ? q.findBestMatches(attributes, k, quantizedCandidates)
+                : getWeighted().findBestMatches(attributes, k);
+
+        RecognitionMetrics.stop(RecognitionMetrics.Stage.DISTANCE_SCAN, start);
+        RecognitionMetrics.count(RecognitionMetrics.Counter.REFERENCE_ROWS_COMPARED, numRows);
+        return matches;
+    }
+
+    // The same for a batch of queries, matches[q] being the k[q] best for attributes[q]. Without quantizing this is
+    // one pass over the rows for the whole batch (see WeightedIndex.scanBatch()); with it, every query that can be is
+    // answered from the quantized index and the rest share the pass.
+    public Match[][] findBestMatches(double[][] attributes, int[] k) {
+        if (getQuantized() == null)
+            return getWeighted().findBestMatches(attributes, k);
+
+        Match[][] matches = new Match[attributes.length][];
+        ArrayList<Integer> exact = new ArrayList<Integer>();
+        for (int q = 0; q < attributes.length; q++) {
+            QuantizedIndex quantized = getQuantized(k[q]);
+            if (quantized != null)
+                matches[q] = quantized.findBestMatches(attributes[q], k[q], quantizedCandidates);
+            else
+                exact.add(q);
+        }
+        if (!exact.isEmpty()) {
+            double[][] exactAttributes = new double[exact.size()][];
+            int[] exactK = new int[exact.size()];
+            for (int i = 0; i < exactK.length; i++) {
+                exactAttributes[i] = attributes[exact.get(i)];
+                exactK[i] = k[exact.get(i)];
+            }
+            Match[][] exactMatches = getWeighted().findBestMatches(exactAttributes, exactK);
+            for (int i = 0; i < exactK.length; i++)
+                matches[exact.get(i)] = exactMatches[i];
+        }
+        return matches;
+    }
+
+    public MatchCursor cursor(double[] attributes, int pageSize) {
+        return new MatchCursor(this, attributes, pageSize);
+    }
+}
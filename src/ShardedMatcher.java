@@ -0,0 +1,104 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+
+// Scans a WeightedIndex on several cores: the rows are split into shards, each shard is scanned into its own bounded
+// top-k heap, and the heaps are merged pairwise on the way back up. Because matches are totally ordered (by distance
+// and then ID), the merged result is exactly the one a sequential scan produces.
+//
+// Every query runs on the same fork-join pool, so concurrent queries share its threads rather than each bringing
+// their own. The shared matcher's pool has one thread per core unless the system property "kanji.matchThreads" says
+// otherwise.
+public final class ShardedMatcher {
+
+    // Below this many rows a scan isn't worth splitting up
+    static final int DEFAULT_SHARD_ROWS = 32768;
+
+    private static final ShardedMatcher SHARED = new ShardedMatcher(new ForkJoinPool(
+            Integer.getInteger("kanji.matchThreads", Runtime.getRuntime().availableProcessors()),
+            new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                    ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    thread.setName("kanji-match-" + thread.getPoolIndex());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }, null, false), DEFAULT_SHARD_ROWS);
+
+    private final ForkJoinPool pool;
+    private final int shardRows;
+
+    public ShardedMatcher(ForkJoinPool pool, int shardRows) {
+        if (shardRows <= 0)
+            throw new IllegalArgumentException("shardRows must be positive: " + shardRows);
+        this.pool = pool;
+        this.shardRows = shardRows;
+    }
+
+    public static ShardedMatcher getShared() {
+        return SHARED;
+    }
+
+    public ForkJoinPool getPool() {
+        return pool;
+    }
+
+    public int getShardRows() {
+        return shardRows;
+    }
+
+    // The same as WeightedIndex.scan() over every row, into a heap of size k that's returned
+    public MatchHeap scan(WeightedIndex index, double[] weightedQuery, int k, double afterSquared, int afterId) {
+        if (index.getNumRows() <= shardRows || pool.getParallelism() == 1) {
+            MatchHeap heap = new MatchHeap(Math.min(k, index.getNumRows()));
+            index.scan(weightedQuery, 0, index.getNumRows(), heap, afterSquared, afterId,
+                    new double[WeightedIndex.BLOCK_ROWS]);
+            return heap;
+        }
+        return pool.invoke(new ShardTask(index, weightedQuery, k, afterSquared, afterId, 0, index.getNumRows()));
+    }
+
+    // ForkJoinTasks are Serializable, though these are never serialized
+    private final class ShardTask extends RecursiveTask<MatchHeap> {
+        private static final long serialVersionUID = 1L;
+
+        private final WeightedIndex index;
+        private final double[] weightedQuery;
+        private final int k;
+        private final double afterSquared;
+        private final int afterId;
+        private final int fromRow, toRow;
+
+        ShardTask(WeightedIndex index, double[] weightedQuery, int k, double afterSquared, int afterId, int fromRow,
+                  int toRow) {
+            this.index = index;
+            this.weightedQuery = weightedQuery;
+            this.k = k;
+            this.afterSquared = afterSquared;
+            this.afterId = afterId;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+        }
+
+        protected MatchHeap compute() {
+            if (toRow - fromRow <= shardRows) {
+                MatchHeap heap = new MatchHeap(Math.min(k, toRow - fromRow));
+                index.scan(weightedQuery, fromRow, toRow, heap, afterSquared, afterId,
+                        new double[WeightedIndex.BLOCK_ROWS]);
+                return heap;
+            }
+
+            // Split on a block boundary where possible, so every shard but the last scans whole blocks
+            int half = ((toRow - fromRow) / 2 + WeightedIndex.BLOCK_ROWS - 1) / WeightedIndex.BLOCK_ROWS
+                    * WeightedIndex.BLOCK_ROWS;
+            int middle = fromRow + (half < toRow - fromRow ? half : (toRow - fromRow) / 2);
+            ShardTask right = new ShardTask(index, weightedQuery, k, afterSquared, afterId, middle, toRow);
+            right.fork();
+            MatchHeap left = new ShardTask(index, weightedQuery, k, afterSquared, afterId, fromRow, middle).compute();
+            MatchHeap merged = new MatchHeap(Math.min(k, toRow - fromRow));
+            merged.addAll(left);
+            merged.addAll(right.join());
+            return merged;
+        }
+    }
+}
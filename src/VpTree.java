@@ -0,0 +1,357 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+// An exact nearest-neighbour index over the weighted attribute vectors (a vantage-point tree), as an optional
+// alternative to scanning every reference row. Each node picks a vantage row and splits the rest into the half
+// nearer to it and the half further away, remembering the range of distances in each half; a query can then skip
+// any half whose range shows (by the triangle inequality) that nothing in it can beat the k-th best match so far.
+//
+// Distances are computed exactly as WeightedIndex computes them (same weighting, same order of operations), and
+// pruning leaves a little slack for rounding, so the results are identical to the brute-force scan's, ties included.
+// Whether the tree is faster depends on the size of the reference set and on how clustered it is; see the
+// "vptree" benchmarks for the crossover.
+//
+// A tree can be saved next to the reference data and loaded again; it only stores its structure, and is checked
+// against the ReferenceIndex it's loaded for. The structure itself is checked as it's read too, so a damaged file
+// fails to load rather than failing (or looping) in the middle of a query. Running this class builds one for the
+// reference data:
+// VpTree [data.bin|data.txt [data.vpt]]
+public final class VpTree {
+
+    static final String TREE_PATH = "/home/joey/IdeaProjects/Kanji Detection/resources/data.vpt";
+
+    static final int MAGIC = 0x5450564B; // "KVPT" as a little-endian int
+    static final int VERSION = 1;
+    static final int LEAF_SIZE = 16;
+
+    // Relative and absolute slack when pruning, so rounding in the bounds can never discard a true match
+    private static final double PRUNE_SLACK = 1e-9;
+
+    private final double[] weights;
+    private final double[] points;   // Weighted rows, row-major
+    private final int numRows, numFeatures;
+    private final long checksum;
+
+    private final int[] order;       // Rows in tree order
+    private int numNodes;
+    private int[] vantage;           // The node's vantage row, or -1 for a leaf
+    private int[] start, end;        // The node's range in 'order' (for a leaf, the rows it holds)
+    private int[] inside, outside;   // Child nodes
+    private double[] inLo, inHi, outLo, outHi; // Distance ranges from the vantage row to each child's rows
+
+    private VpTree(ReferenceIndex index, double[] weights) {
+        this.weights = weights.clone();
+        numRows = index.getNumRows();
+        numFeatures = index.getNumFeatures();
+        points = new double[numRows * numFeatures];
+        for (int row = 0; row < numRows; row++) {
+            for (int i = 0; i < numFeatures; i++)
+                points[row * numFeatures + i] = weights[i] * index.get(row, i);
+        }
+        checksum = checksum(points);
+        order = new int[numRows];
+        int capacity = Math.max(1, 2 * numRows / LEAF_SIZE + 1);
+        vantage = new int[capacity];
+        start = new int[capacity];
+        end = new int[capacity];
+        inside = new int[capacity];
+        outside = new int[capacity];
+        inLo = new double[capacity];
+        inHi = new double[capacity];
+        outLo = new double[capacity];
+        outHi = new double[capacity];
+    }
+
+    public static VpTree build(ReferenceIndex index) {
+        return build(index, Processor.WEIGHTS);
+    }
+
+    public static VpTree build(ReferenceIndex index, double[] weights) {
+        VpTree tree = new VpTree(index, weights);
+        double[] distances = new double[tree.numRows];
+
+        for (int row = 0; row < tree.numRows; row++)
+            tree.order[row] = row;
+        if (tree.numRows > 0)
+            tree.build(0, tree.numRows, distances);
+        return tree;
+    }
+
+    private int build(int from, int to, double[] distances) {
+        int node = newNode(from, to);
+
+        if (to - from <= LEAF_SIZE) {
+            vantage[node] = -1;
+            return node;
+        }
+
+        // The first row of the range is the vantage point; split the others around their median distance to it
+        int v = order[from];
+        vantage[node] = v;
+        for (int i = from + 1; i < to; i++)
+            distances[i] = Math.sqrt(squaredDistance(v, points, order[i] * numFeatures));
+        int middle = (from + 1 + to) / 2;
+        select(distances, from + 1, to, middle);
+
+        inLo[node] = outLo[node] = Double.POSITIVE_INFINITY;
+        inHi[node] = outHi[node] = Double.NEGATIVE_INFINITY;
+        for (int i = from + 1; i < middle; i++) {
+            inLo[node] = Math.min(inLo[node], distances[i]);
+            inHi[node] = Math.max(inHi[node], distances[i]);
+        }
+        for (int i = middle; i < to; i++) {
+            outLo[node] = Math.min(outLo[node], distances[i]);
+            outHi[node] = Math.max(outHi[node], distances[i]);
+        }
+        int in = build(from + 1, middle, distances);
+        int out = build(middle, to, distances);
+        inside[node] = in;
+        outside[node] = out;
+        return node;
+    }
+
+    private int newNode(int from, int to) {
+        if (numNodes == vantage.length) {
+            int capacity = vantage.length * 2;
+            vantage = Arrays.copyOf(vantage, capacity);
+            start = Arrays.copyOf(start, capacity);
+            end = Arrays.copyOf(end, capacity);
+            inside = Arrays.copyOf(inside, capacity);
+            outside = Arrays.copyOf(outside, capacity);
+            inLo = Arrays.copyOf(inLo, capacity);
+            inHi = Arrays.copyOf(inHi, capacity);
+            outLo = Arrays.copyOf(outLo, capacity);
+            outHi = Arrays.copyOf(outHi, capacity);
+        }
+        start[numNodes] = from;
+        end[numNodes] = to;
+        return numNodes++;
+    }
+
+    // Quickselect: rearrange [from, to) of 'distances' (and 'order' alongside it) so that position n holds the
+    // value it would have if sorted, with nothing greater before it and nothing smaller after it
+    private void select(double[] distances, int from, int to, int n) {
+        int lo = from, hi = to - 1;
+
+        while (lo < hi) {
+            double pivot = distances[(lo + hi) >>> 1];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (distances[i] < pivot)
+                    i++;
+                while (distances[j] > pivot)
+                    j--;
+                if (i <= j) {
+                    swap(distances, i++, j--);
+                }
+            }
+            if (n <= j)
+                hi = j;
+            else if (n >= i)
+                lo = i;
+            else
+                return;
+        }
+    }
+
+    private void swap(double[] distances, int i, int j) {
+        double d = distances[i];
+        distances[i] = distances[j];
+        distances[j] = d;
+        int row = order[i];
+        order[i] = order[j];
+        order[j] = row;
+    }
+
+    public int getNumRows() {
+        return numRows;
+    }
+
+    // The k best matches for the given (unweighted) attributes, identical to WeightedIndex.findBestMatches()
+    public Match[] findBestMatches(double[] attributes, int k) {
+        double[] query = new double[numFeatures];
+        MatchHeap heap = new MatchHeap(Math.min(k, numRows));
+
+        for (int i = 0; i < numFeatures; i++)
+            query[i] = weights[i] * attributes[i];
+        if (numRows > 0 && heap.capacity() > 0)
+            search(0, query, heap);
+        return WeightedIndex.toDistances(heap.drainSorted());
+    }
+
+    private void search(int node, double[] query, MatchHeap heap) {
+        if (vantage[node] == -1) {
+            for (int i = start[node]; i < end[node]; i++)
+                heap.offer(order[i] + 1, squaredDistance(order[i], query, 0));
+            return;
+        }
+
+        double squared = squaredDistance(vantage[node], query, 0);
+        double d = Math.sqrt(squared);
+        heap.offer(vantage[node] + 1, squared);
+
+        // Look at the half the query falls in first, since that's where the best matches are likely to be
+        boolean insideFirst = d < (inHi[node] + outLo[node]) / 2;
+        int first = insideFirst ? inside[node] : outside[node];
+        int second = insideFirst ? outside[node] : inside[node];
+
+        if (!canPrune(insideFirst, node, d, heap))
+            search(first, query, heap);
+        if (!canPrune(!insideFirst, node, d, heap))
+            search(second, query, heap);
+    }
+
+    // Whether nothing in the inside (or outside) child of 'node' can make it into the heap
+    private boolean canPrune(boolean insideChild, int node, double d, MatchHeap heap) {
+        if (!heap.isFull())
+            return false;
+        double lo = insideChild ? inLo[node] : outLo[node];
+        double hi = insideChild ? inHi[node] : outHi[node];
+        double lowerBound = Math.max(0, Math.max(d - hi, lo - d));
+        double worst = Math.sqrt(heap.worstDistance());
+        return lowerBound > worst * (1 + PRUNE_SLACK) + PRUNE_SLACK;
+    }
+
+    // Squared distance from 'row' to the vector at vector[offset..], accumulated in the same order as
+    // WeightedIndex.scan() so the result is bit-for-bit the same
+    private double squaredDistance(int row, double[] vector, int offset) {
+        double sum = 0;
+        int base = row * numFeatures;
+
+        for (int i = 0; i < numFeatures; i++) {
+            double diff = points[base + i] - vector[offset + i];
+            sum += diff * diff;
+        }
+        return sum;
+    }
+
+    public void write(String path) throws IOException {
+        File temp = new File(path + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+
+        try {
+            out.writeInt(Integer.reverseBytes(MAGIC));
+            out.writeInt(VERSION);
+            out.writeInt(numRows);
+            out.writeInt(numFeatures);
+            out.writeLong(checksum);
+            out.writeInt(numNodes);
+            for (int row : order)
+                out.writeInt(row);
+            for (int node = 0; node < numNodes; node++) {
+                out.writeInt(vantage[node]);
+                out.writeInt(start[node]);
+                out.writeInt(end[node]);
+                out.writeInt(inside[node]);
+                out.writeInt(outside[node]);
+                out.writeDouble(inLo[node]);
+                out.writeDouble(inHi[node]);
+                out.writeDouble(outLo[node]);
+                out.writeDouble(outHi[node]);
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(temp.toPath(), new File(path).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Load a tree written by write(). It must have been built from the same reference data and weights.
+    public static VpTree read(String path, ReferenceIndex index) throws IOException {
+        return read(path, index, Processor.WEIGHTS);
+    }
+
+    public static VpTree read(String path, ReferenceIndex index, double[] weights) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
+
+        try {
+            if (Integer.reverseBytes(in.readInt()) != MAGIC)
+                throw new IOException(path + ": not a VP-tree");
+            if (in.readInt() != VERSION)
+                throw new IOException(path + ": unsupported VP-tree version");
+            VpTree tree = new VpTree(index, weights);
+            if (in.readInt() != tree.numRows || in.readInt() != tree.numFeatures || in.readLong() != tree.checksum)
+                throw new IOException(path + ": built for different reference data or weights");
+
+            // Every node holds at least one row, and search() starts from node 0
+            int numNodes = in.readInt();
+            if (numNodes < 0 || numNodes > tree.numRows || (tree.numRows > 0 && numNodes == 0))
+                throw new IOException(path + ": corrupt tree (" + numNodes + " nodes for " + tree.numRows + " rows)");
+            boolean[] seen = new boolean[tree.numRows];
+            for (int i = 0; i < tree.numRows; i++) {
+                int row = in.readInt();
+                if (row < 0 || row >= tree.numRows || seen[row])
+                    throw new IOException(path + ": corrupt tree (the row order isn't a permutation)");
+                seen[row] = true;
+                tree.order[i] = row;
+            }
+            for (int node = 0; node < numNodes; node++) {
+                tree.newNode(0, 0);
+                tree.vantage[node] = in.readInt();
+                tree.start[node] = in.readInt();
+                tree.end[node] = in.readInt();
+                tree.inside[node] = in.readInt();
+                tree.outside[node] = in.readInt();
+                tree.inLo[node] = in.readDouble();
+                tree.inHi[node] = in.readDouble();
+                tree.outLo[node] = in.readDouble();
+                tree.outHi[node] = in.readDouble();
+            }
+            for (int node = 0; node < numNodes; node++) {
+                if (!tree.isValidNode(node))
+                    throw new IOException(path + ": corrupt tree (node " + node + ")");
+            }
+            return tree;
+        } finally {
+            in.close();
+        }
+    }
+
+    // Whether a node read from a file stays within the tree. Nodes are numbered in the order build() creates them, so
+    // children come after their parent; that rules out cycles, which would otherwise send search() round forever.
+    private boolean isValidNode(int node) {
+        if (start[node] < 0 || start[node] > end[node] || end[node] > numRows)
+            return false;
+        if (vantage[node] == -1)
+            return true;
+        return vantage[node] >= 0 && vantage[node] < numRows && inside[node] > node && inside[node] < numNodes
+                && outside[node] > node && outside[node] < numNodes;
+    }
+
+    private static long checksum(double[] values) {
+        CRC32 crc = new CRC32();
+        byte[] bytes = new byte[8];
+
+        for (double value : values) {
+            long bits = Double.doubleToLongBits(value);
+            for (int i = 0; i < 8; i++)
+                bytes[i] = (byte)(bits >>> (8 * i));
+            crc.update(bytes);
+        }
+        return crc.getValue();
+    }
+
+    public static void main(String[] args) {
+        String output = args.length > 1 ? args[1] : TREE_PATH;
+
+        try {
+            long start = System.nanoTime();
+            VpTree tree = build(args.length > 0 ? ReferenceIndex.load(args[0]) : ReferenceIndex.loadDefault());
+            tree.write(output);
+            System.out.println("Wrote a tree of " + tree.getNumRows() + " rows (" + tree.numNodes + " nodes) to "
+                    + output + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
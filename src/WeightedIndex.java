@@ -0,0 +1,130 @@
+import java.nio.ByteBuffer;
+
+// The reference rows of a ReferenceIndex under a set of weights. The index already stores its values feature by
+// feature (structure-of-arrays), so this scans them where they are, in the mapped feature store when it was loaded
+// from one, and the DistanceKernel multiplies each value by its weight as it's read rather than keeping a weighted
+// copy. A query is weighted the same way, after which the weighted distance to every row is a plain squared
+// euclidean distance that the kernel computes for a block of rows at a time. Rows are ranked by squared distance, so
+// no square roots are taken except for the matches that are returned.
+public final class WeightedIndex {
+
+    static final int BLOCK_ROWS = 512;
+
+    private final double[] weights;
+    private final ByteBuffer values;
+    private final boolean singlePrecision;
+    private final int numRows;
+    private final int numFeatures;
+    private final DistanceKernel kernel;
+
+    public WeightedIndex(ReferenceIndex index, double[] weights) {
+        this(index, weights, DistanceKernel.get());
+    }
+
+    public WeightedIndex(ReferenceIndex index, double[] weights, DistanceKernel kernel) {
+        numRows = index.getNumRows();
+        numFeatures = index.getNumFeatures();
+        this.weights = weights.clone();
+        this.kernel = kernel;
+        values = index.getValues();
+        singlePrecision = index.isSinglePrecision();
+    }
+
+    public int getNumRows() {
+        return numRows;
+    }
+
+    public DistanceKernel getKernel() {
+        return kernel;
+    }
+
+    // The query's attributes with the weights applied, as expected by scan()
+    public double[] weigh(double[] attributes) {
+        double[] weighted = new double[numFeatures];
+
+        for (int i = 0; i < numFeatures; i++)
+            weighted[i] = weights[i] * attributes[i];
+        return weighted;
+    }
+
+    // Offer rows [fromRow, toRow) to the heap, keyed by squared distance. Rows that rank at or before (afterSquared,
+    // afterId) are left out, which is how MatchCursor skips the pages it has already returned; pass
+    // Double.NEGATIVE_INFINITY to consider every row. 'block' is scratch space of at least BLOCK_ROWS doubles.
+    public void scan(double[] weightedQuery, int fromRow, int toRow, MatchHeap heap, double afterSquared,
+                     int afterId, double[] block) {
+        for (int start = fromRow; start < toRow; start += BLOCK_ROWS) {
+            int n = Math.min(BLOCK_ROWS, toRow - start);
+
+            for (int i = 0; i < n; i++)
+                block[i] = 0;
+            for (int f = 0; f < numFeatures; f++)
+                kernel.accumulate(values, singlePrecision, f * numRows + start, weights[f], weightedQuery[f], block,
+                        n);
+            for (int i = 0; i < n; i++) {
+                if (Match.compare(block[i], start + i + 1, afterSquared, afterId) > 0)
+                    heap.offer(start + i + 1, block[i]);
+            }
+        }
+    }
+
+    // Several queries in one pass over the rows: each block of rows is scored against every query while it's still
+    // in cache, instead of streaming the whole index once per query. heaps[q] receives the matches of
+    // weightedQueries[q], exactly as scan() would give them.
+    public void scanBatch(double[][] weightedQueries, MatchHeap[] heaps, double[] block) {
+        for (int start = 0; start < numRows; start += BLOCK_ROWS) {
+            int n = Math.min(BLOCK_ROWS, numRows - start);
+
+            for (int q = 0; q < weightedQueries.length; q++) {
+                for (int i = 0; i < n; i++)
+                    block[i] = 0;
+                for (int f = 0; f < numFeatures; f++)
+                    kernel.accumulate(values, singlePrecision, f * numRows + start, weights[f],
+                            weightedQueries[q][f], block, n);
+                for (int i = 0; i < n; i++)
+                    heaps[q].offer(start + i + 1, block[i]);
+            }
+        }
+    }
+
+    // The k[q] best matches for each of the given (unweighted) attributes, from a single pass over the rows
+    public Match[][] findBestMatches(double[][] attributes, int[] k) {
+        double[][] weightedQueries = new double[attributes.length][];
+        MatchHeap[] heaps = new MatchHeap[attributes.length];
+        Match[][] matches = new Match[attributes.length][];
+
+        for (int q = 0; q < attributes.length; q++) {
+            weightedQueries[q] = weigh(attributes[q]);
+            heaps[q] = new MatchHeap(Math.min(k[q], numRows));
+        }
+        scanBatch(weightedQueries, heaps, new double[BLOCK_ROWS]);
+        for (int q = 0; q < attributes.length; q++)
+            matches[q] = toDistances(heaps[q].drainSorted());
+        return matches;
+    }
+
+    // The k best matches for the given (unweighted) attributes. Large indexes are scanned in parallel on the
+    // shared ShardedMatcher.
+    public Match[] findBestMatches(double[] attributes, int k) {
+        return findBestMatches(attributes, k, ShardedMatcher.getShared());
+    }
+
+    public Match[] findBestMatches(double[] attributes, int k, ShardedMatcher matcher) {
+        MatchHeap heap = matcher.scan(this, weigh(attributes), k, Double.NEGATIVE_INFINITY, 0);
+        return toDistances(heap.drainSorted());
+    }
+
+    // The k best matches with one thread, however large the index is
+    public Match[] findBestMatchesSequential(double[] attributes, int k) {
+        MatchHeap heap = new MatchHeap(Math.min(k, numRows));
+
+        scan(weigh(attributes), 0, numRows, heap, Double.NEGATIVE_INFINITY, 0, new double[BLOCK_ROWS]);
+        return toDistances(heap.drainSorted());
+    }
+
+    // Turn the squared distances of matches from a heap filled by scan() back into distances (in place)
+    static Match[] toDistances(Match[] matches) {
+        for (int i = 0; i < matches.length; i++)
+            matches[i] = new Match(matches[i].getKanjiId(), Math.sqrt(matches[i].getDistance()));
+        return matches;
+    }
+}